@@ -0,0 +1,69 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.IBloomFilter;
+import com.hmdp.utils.LocalBloomFilter;
+import com.hmdp.utils.RedisBloomFilter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+@Configuration
+public class BloomFilterConfig {
+
+    /**
+     * local：每个节点在内存中维护一份，新增的id通过 bloom:add:{name} 广播给所有节点；redis：所有节点共享一个 Redis bitmap
+     */
+    @Value("${hmdp.bloom.type:local}")
+    private String type;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Bean
+    public IBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                                        RedisMessageListenerContainer redisMessageListenerContainer) {
+        return create("shop", stringRedisTemplate, meterRegistry, redisMessageListenerContainer);
+    }
+
+    @Bean
+    public IBloomFilter userBloomFilter(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                                        RedisMessageListenerContainer redisMessageListenerContainer) {
+        return create("user", stringRedisTemplate, meterRegistry, redisMessageListenerContainer);
+    }
+
+    private IBloomFilter create(String name, StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                                RedisMessageListenerContainer redisMessageListenerContainer) {
+        IBloomFilter filter;
+        if ("redis".equals(type)) {
+            filter = new RedisBloomFilter(BLOOM_KEY + name, expectedInsertions, fpp, stringRedisTemplate);
+        } else {
+            filter = new LocalBloomFilter(expectedInsertions, fpp);
+            // 其他节点新增的id(由缓存失效中继从 tb_cache_outbox 中读到后广播，逗号分隔)加入本节点的过滤器
+            redisMessageListenerContainer.addMessageListener((message, pattern) -> filter.addAll(
+                    Arrays.stream(new String(message.getBody(), StandardCharsets.UTF_8).split(","))
+                            .map(Long::valueOf).collect(Collectors.toList())),
+                    new ChannelTopic(BLOOM_ADD_CHANNEL + name));
+        }
+        // 监控指标：内存占用、已加入数量、估算误判率
+        Tags tags = Tags.of("name", name, "type", type);
+        meterRegistry.gauge("bloom.memory.bytes", tags, filter, IBloomFilter::memoryBytes);
+        meterRegistry.gauge("bloom.count", tags, filter, IBloomFilter::count);
+        meterRegistry.gauge("bloom.fpp", tags, filter, IBloomFilter::falsePositiveRate);
+        return filter;
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.IBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 启动后把已有的店铺id、用户id加入布隆过滤器，加载完成之前过滤器不拦截任何请求
+ */
+@Slf4j
+@Component
+public class BloomFilterLoader implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private IBloomFilter shopBloomFilter;
+
+    @Resource
+    private IBloomFilter userBloomFilter;
+
+    /**
+     * 每次从数据库读取的id数量
+     */
+    @Value("${hmdp.bloom.batch-size:1000}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        load("shop", shopBloomFilter, shopService, Shop::getId);
+        load("user", userBloomFilter, userService, User::getId);
+    }
+
+    private <T> void load(String name, IBloomFilter filter, IService<T> service, Function<T, Long> getId) {
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        while (true) {
+            // 按主键分批读取，只查询id列，不会一次把整张表读入内存
+            List<Long> ids = service.query()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + batchSize)
+                    .list()
+                    .stream().map(getId).collect(Collectors.toList());
+            if (ids.isEmpty()) {
+                break;
+            }
+            filter.addAll(ids);
+            lastId = ids.get(ids.size() - 1);
+        }
+        filter.markReady();
+        log.info("布隆过滤器[{}]加载完成，id数量：{}，内存：{}KB，估算误判率：{}，耗时：{}ms", name, filter.count(),
+                filter.memoryBytes() / 1024, String.format("%.4f", filter.falsePositiveRate()),
+                System.currentTimeMillis() - begin);
+    }
+}
@@ -0,0 +1,22 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.ICacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.Lz4CacheCodec;
+import com.hmdp.utils.SmileCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CacheConfig {
+
+    @Bean
+    public ICacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec,
+                                  @Value("${hmdp.cache.compress-threshold:0}") int compressThreshold,
+                                  @Value("${hmdp.cache.max-decompressed-size:16777216}") int maxDecompressedSize) {
+        ICacheCodec cacheCodec = "smile".equals(codec) ? new SmileCacheCodec() : new JsonCacheCodec();
+        // 阈值大于0时，超过阈值的数据使用 LZ4 压缩
+        return compressThreshold > 0 ? new Lz4CacheCodec(cacheCodec, compressThreshold, maxDecompressedSize) : cacheCodec;
+    }
+}
@@ -0,0 +1,169 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.utils.CacheCLient;
+import com.hmdp.utils.IBloomFilter;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.SimpleRedisLock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+
+/**
+ * 缓存失效中继：读取触发器写入 tb_cache_outbox 的变更事件，合并重复的行之后批量删除 Redis 和各节点的本地缓存。
+ * 事件只有在业务事务提交之后才可见，所以删除一定发生在提交之后；同一时刻只有一个节点在处理。
+ * 店铺、用户的id同时加入布隆过滤器并广播给所有节点，绕过 Service 插入的行和其他节点插入的行也不会被误拦截
+ */
+@Slf4j
+@Component
+public class CacheInvalidationRelay {
+
+    // 表名 -> 缓存key前缀
+    private static final Map<String, String> KEY_PREFIXES = new HashMap<>();
+    static {
+        KEY_PREFIXES.put("tb_shop", CACHE_SHOP_KEY);
+        KEY_PREFIXES.put("tb_user", CACHE_USER_KEY);
+        KEY_PREFIXES.put("tb_blog", CACHE_BLOG_KEY);
+    }
+
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+
+    @Autowired
+    private CacheCLient cacheCLient;
+
+    @Resource
+    private IBloomFilter shopBloomFilter;
+
+    @Resource
+    private IBloomFilter userBloomFilter;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 扫描间隔(ms)，也是数据提交后缓存最多保持旧值的时间
+     */
+    @Value("${hmdp.cache.outbox.interval:200}")
+    private long interval;
+
+    /**
+     * 每次读取的事件数量
+     */
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+
+    private ILock lock;
+
+    private Counter events;
+    private Counter invalidated;
+
+    // 事件扫描线程
+    private final ScheduledExecutorService cacheOutboxExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        lock = new SimpleRedisLock("cache:outbox", stringRedisTemplate);
+        events = meterRegistry.counter("cache.outbox.events");
+        invalidated = meterRegistry.counter("cache.outbox.invalidated");
+        cacheOutboxExecutor.scheduleWithFixedDelay(this::relay, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void relay() {
+        try {
+            // 其他节点正在处理，本节点只需要接收本地缓存的失效广播
+            if (!lock.tryLock(30)) {
+                return;
+            }
+            try {
+                // 一页读满说明还有积压，继续读取下一页
+                while (relayBatch() == batchSize) {
+                    log.debug("缓存失效事件积压，继续处理");
+                }
+            } finally {
+                lock.unLock();
+            }
+        } catch (Exception e) {
+            // 事件没有被删除，下一轮会重新处理
+            log.error("处理缓存失效事件失败", e);
+        }
+    }
+
+    private int relayBatch() {
+        // 1.按主键顺序读取一批事件
+        List<CacheOutbox> batch = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                .orderByAsc("id")
+                .last("LIMIT " + batchSize));
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        // 2.同一行的多次变更只删除一次
+        Set<String> keys = new LinkedHashSet<>();
+        for (CacheOutbox event : batch) {
+            String prefix = KEY_PREFIXES.get(event.getTableName());
+            if (prefix != null) {
+                keys.add(prefix + event.getRowId());
+            }
+        }
+        // 3.一次 DEL 删除 Redis 缓存，一条广播删除所有节点的本地缓存
+        cacheCLient.deleteBatch(keys);
+        // 4.新增的店铺、用户加入布隆过滤器。事件中没有区分新增和修改，已经存在的id重复加入没有影响
+        addToBloomFilter("shop", shopBloomFilter, batch, "tb_shop");
+        addToBloomFilter("user", userBloomFilter, batch, "tb_user");
+        // 5.缓存删除成功之后再删除事件，失败时下一轮重试。
+        // 主键在插入时分配而不是提交时，未提交事务的事件可能有更小的id，这里只删除读到的事件，不能按范围删除
+        cacheOutboxMapper.deleteBatchIds(batch.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+        events.increment(batch.size());
+        invalidated.increment(keys.size());
+        return batch.size();
+    }
+
+    private void addToBloomFilter(String name, IBloomFilter filter, List<CacheOutbox> batch, String tableName) {
+        List<Long> ids = new ArrayList<>();
+        for (CacheOutbox event : batch) {
+            if (tableName.equals(event.getTableName())) {
+                ids.add(event.getRowId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        // Redis 类型的过滤器由所有节点共享，直接写入即可；本地类型还要通知其他节点
+        filter.addAll(ids);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL + name,
+                ids.stream().map(String::valueOf).collect(Collectors.joining(",")));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        cacheOutboxExecutor.shutdown();
+    }
+}
@@ -0,0 +1,194 @@
+package com.hmdp.config;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheCLient;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+
+/**
+ * 启动预热：店铺类型列表、店铺缓存 cache:shop:{id}、GEO 索引 shop:geo:{typeId}。
+ * 预热进度达到阈值之前 run 方法不会返回，应用保持 REFUSING_TRAFFIC，剩余部分在后台继续完成
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Autowired
+    private CacheCLient cacheCLient;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每页读取的店铺数量
+     */
+    @Value("${hmdp.warmup.page-size:500}")
+    private int pageSize;
+
+    /**
+     * 同时写入 Redis 的页数
+     */
+    @Value("${hmdp.warmup.concurrency:4}")
+    private int concurrency;
+
+    /**
+     * 预热进度达到该比例后开始接收流量
+     */
+    @Value("${hmdp.warmup.ready-threshold:0.8}")
+    private double readyThreshold;
+
+    /**
+     * 最长等待时间(s)，超时后不再阻塞启动
+     */
+    @Value("${hmdp.warmup.timeout:60}")
+    private long timeout;
+
+    /**
+     * 店铺缓存过期时间的随机增量上限(min)，同一批预热的key不会在同一时刻过期
+     */
+    @Value("${hmdp.warmup.ttl-jitter:10}")
+    private long ttlJitter;
+
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong warmed = new AtomicLong();
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        meterRegistry.gauge("cache.warmup.progress", this, CacheWarmer::progress);
+        long begin = System.currentTimeMillis();
+        // 1.店铺类型只有一条缓存，直接写入，并生成内存快照
+        shopTypeService.refreshTypeList();
+        shopTypeService.queryTypeSnapshot();
+        // 2.店铺分页读取，并行写入
+        total.set(shopService.count());
+        CountDownLatch ready = new CountDownLatch(1);
+        ExecutorService driver = Executors.newSingleThreadExecutor();
+        driver.submit(() -> {
+            try {
+                warmShops(ready);
+                log.info("预热完成，店铺数量：{}，耗时：{}ms", warmed.get(), System.currentTimeMillis() - begin);
+            } catch (Exception e) {
+                log.error("预热店铺缓存失败", e);
+            } finally {
+                ready.countDown();
+            }
+        });
+        driver.shutdown();
+        // 3.等待预热进度达到阈值
+        if (!ready.await(timeout, TimeUnit.SECONDS)) {
+            log.warn("预热超时，当前进度：{}%", String.format("%.1f", progress() * 100));
+        }
+    }
+
+    private void warmShops(CountDownLatch ready) throws InterruptedException {
+        ExecutorService writers = Executors.newFixedThreadPool(concurrency);
+        // 最多 concurrency 页在写入，读取太快时等待，避免整张表堆在内存中
+        Semaphore permits = new Semaphore(concurrency);
+        long lastId = 0;
+        long lastReport = System.currentTimeMillis();
+        try {
+            while (true) {
+                // 按主键分页读取
+                List<Shop> shops = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + pageSize)
+                        .list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+                permits.acquire();
+                writers.submit(() -> {
+                    try {
+                        writePage(shops);
+                        if (progress() >= readyThreshold) {
+                            ready.countDown();
+                        }
+                    } catch (Exception e) {
+                        log.error("预热店铺缓存失败，本页店铺数量：{}", shops.size(), e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                if (System.currentTimeMillis() - lastReport > 1000) {
+                    lastReport = System.currentTimeMillis();
+                    log.info("预热进度：{}/{}", warmed.get(), total.get());
+                }
+            }
+        } finally {
+            writers.shutdown();
+            writers.awaitTermination(timeout, TimeUnit.SECONDS);
+        }
+    }
+
+    private void writePage(List<Shop> shops) {
+        // 1.店铺缓存，一次 pipeline 写入
+        Map<String, Shop> entries = new HashMap<>(shops.size());
+        shops.forEach(shop -> entries.put(CACHE_SHOP_KEY + shop.getId(), shop));
+        cacheCLient.setBatch(entries, CACHE_SHOP_TTL, ttlJitter, TimeUnit.MINUTES);
+        // 2.GEO 索引，按类型分组后一次 pipeline 写入 GEOADD shop:geo:{typeId} 经度 纬度 member
+        Map<Long, List<RedisGeoCommands.GeoLocation<String>>> locations = shops.stream()
+                .filter(shop -> shop.getX() != null && shop.getY() != null)
+                .collect(Collectors.groupingBy(Shop::getTypeId, Collectors.mapping(
+                        shop -> new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())),
+                        Collectors.toList())));
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                locations.forEach((typeId, list) -> operations.opsForGeo().add(SHOP_GEO_KEY + typeId, list));
+                return null;
+            }
+        });
+        warmed.addAndGet(shops.size());
+    }
+
+    private double progress() {
+        long t = total.get();
+        return t == 0 ? 1 : (double) warmed.get() / t;
+    }
+}
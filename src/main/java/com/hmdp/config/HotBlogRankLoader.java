@@ -0,0 +1,66 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.service.IBlogService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+
+/**
+ * 启动时检查热门排行，Redis 中没有时从数据库重建一次，之后由点赞和发布增量更新，
+ * 并定期和数据库对账，补上绕过 Service 写入的笔记
+ */
+@Slf4j
+@Component
+public class HotBlogRankLoader implements ApplicationRunner {
+
+    @Resource
+    private IBlogService blogService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 对账间隔(s)，0表示不对账
+     */
+    @Value("${hmdp.blog.hot.reconcile-interval:600}")
+    private long reconcileInterval;
+
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+            blogService.rebuildHotRank();
+        }
+        if (reconcileInterval > 0) {
+            reconcileExecutor.scheduleWithFixedDelay(this::reconcile, reconcileInterval, reconcileInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private void reconcile() {
+        try {
+            blogService.reconcileHotRank();
+        } catch (Exception e) {
+            // 下一轮再对账，不能让异常终止定时任务
+            log.error("热门笔记排行对账失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdownNow();
+    }
+}
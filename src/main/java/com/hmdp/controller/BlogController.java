@@ -82,4 +82,15 @@ public class BlogController {
         return Result.ok(records);
     }
 
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(
+            @RequestParam(value = "lastId", required = false) Long max,
+            @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        // 第一页不带游标，从当前时间开始
+        if (max == null) {
+            max = System.currentTimeMillis();
+        }
+        return blogService.queryBlogOfFollow(max, offset);
+    }
+
 }
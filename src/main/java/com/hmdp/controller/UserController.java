@@ -1,11 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
@@ -87,16 +85,23 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
-        // 查询详情
-        User user = userService.getById(userId);
-        if (user == null) {
+        // 查询详情，布隆过滤器判断用户一定不存在时不会查询 Redis 和数据库
+        UserDTO userDTO = userService.queryUserDTO(userId);
+        if (userDTO == null) {
             return Result.ok();
         }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         // 返回
         return Result.ok(userDTO);
     }
 
+    /**
+     * 修改昵称、头像
+     */
+    @PutMapping
+    public Result updateProfile(@RequestBody UserDTO userDTO){
+        return userService.updateProfile(userDTO);
+    }
+
     @PostMapping("/sign")
     public Result sign(){
         return userService.sign();
@@ -45,6 +45,17 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存，只有管理员可以调用
+     * @param voucherId 优惠券id
+     * @param stock 补充的库存数量
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/stock/{stock}")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @PathVariable("stock") Integer stock) {
+        return voucherService.addSeckillStock(voucherId, stock);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
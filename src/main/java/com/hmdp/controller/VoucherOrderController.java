@@ -4,6 +4,7 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.Resource;
 
@@ -26,4 +27,12 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 非阻塞秒杀：返回 Mono，等待 Redis 执行脚本期间释放 Tomcat 线程
+     */
+    @PostMapping("seckill/async/{id}")
+    public Mono<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillVoucherAsync(voucherId);
+    }
 }
@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 店铺类型列表的快照：版本号、ETag，以及已经序列化好的响应体
+ */
+@Data
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    private Long version;
+    private String etag;
+    private byte[] body;
+}
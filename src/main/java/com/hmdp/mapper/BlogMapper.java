@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 一条 UPDATE 把多篇笔记的点赞数增量写回数据库，结果小于0时置为0
+     * @param deltas blogId -> 点赞数增量
+     */
+    int incrLikedBatch(@Param("deltas") Map<Long, Long> deltas);
+
 }
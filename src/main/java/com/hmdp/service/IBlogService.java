@@ -23,4 +23,16 @@ public interface IBlogService extends IService<Blog> {
     Result queryBloglikes(Long id);
 
     Result saveBlog(Blog blog);
+
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    /**
+     * 从数据库重建热门排行 blog:hot
+     */
+    void rebuildHotRank();
+
+    /**
+     * 热门排行中的笔记数量少于数据库时重建
+     */
+    void reconcileHotRank();
 }
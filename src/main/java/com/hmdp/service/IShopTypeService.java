@@ -1,8 +1,11 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +16,18 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
+    /**
+     * 店铺类型列表的内存快照，包含已经序列化好的响应体和 ETag
+     */
+    ShopTypeSnapshot queryTypeSnapshot();
+
+    /**
+     * 按 sort 排序的全部店铺类型，优先读缓存
+     */
+    List<ShopType> queryTypeList();
+
+    /**
+     * 查询数据库并写入缓存
+     */
+    List<ShopType> refreshTypeList();
 }
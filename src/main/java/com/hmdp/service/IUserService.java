@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -24,4 +27,20 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    /**
+     * 查询用户的公开信息，优先读缓存
+     */
+    UserDTO queryUserDTO(Long id);
+
+    /**
+     * 修改当前登录用户的昵称、头像
+     */
+    Result updateProfile(UserDTO userDTO);
+
+    /**
+     * 批量查询用户的公开信息，优先读缓存
+     * @return 按 ids 顺序排列的 id -> UserDTO，不存在的用户不包含在内
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
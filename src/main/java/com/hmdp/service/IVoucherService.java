@@ -17,4 +17,8 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    void addSeckillVoucher(Voucher voucher, int stockShards);
+
+    Result addSeckillStock(Long voucherId, Integer stock);
 }
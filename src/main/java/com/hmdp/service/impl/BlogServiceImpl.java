@@ -1,33 +1,71 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheCLient;
+import com.hmdp.utils.FeedFanout;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
-import jdk.nashorn.internal.ir.annotations.Ignore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_DELTA_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKE_FLUSHING_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHORS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
 
 /**
  * <p>
@@ -37,6 +75,7 @@ import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -47,89 +86,479 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
 
     @Autowired
-    private FollowServiceImpl followService;
+    private FeedFanout feedFanout;
+
+    @Autowired
+    private CacheCLient cacheCLient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Timer feedReadLatency;
+
+    /**
+     * 点赞数写回数据库的间隔(ms)，也是进程崩溃时最多需要重新写回的时间范围
+     */
+    @Value("${hmdp.blog.like.flush-interval:1000}")
+    private long likeFlushInterval;
+
+    /**
+     * 每条 UPDATE 更新的笔记数量
+     */
+    @Value("${hmdp.blog.like.flush-batch-size:500}")
+    private int likeFlushBatchSize;
+
+    /**
+     * 热门排行中每晚发布一小时相当于多少个赞，0表示只按点赞数排行
+     */
+    @Value("${hmdp.blog.hot.gravity:1}")
+    private double hotGravity;
+
+    // 发布时间加权的起点 2022-01-01，分数保持在 double 可以精确表示的范围内
+    private static final long HOT_EPOCH_MILLIS = 1640995200000L;
+
+    // 重建热门排行时每页读取的笔记数量
+    private static final int HOT_REBUILD_BATCH_SIZE = 1000;
+
+    private ILock likeFlushLock;
+
+    private ILock hotRebuildLock;
+
+    private Counter likeFlushed;
+
+    private Timer likeFlushLatency;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 点赞数写回线程
+    private final ScheduledExecutorService likeFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        feedReadLatency = meterRegistry.timer("feed.read.latency");
+        likeFlushed = meterRegistry.counter("blog.like.flushed");
+        likeFlushLatency = meterRegistry.timer("blog.like.flush.latency");
+        likeFlushLock = new SimpleRedisLock("blog:like-flush", stringRedisTemplate);
+        hotRebuildLock = new SimpleRedisLock("blog:hot-rebuild", stringRedisTemplate);
+        likeFlushExecutor.scheduleWithFixedDelay(this::flushLikes, likeFlushInterval, likeFlushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 停止定时写回，退出前再写回一次
+        likeFlushExecutor.shutdown();
+        likeFlushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        flushLikes();
+    }
 
     @Override
     public Result queryBlogById(Long id) {
-        // 1.查询blog
-        Blog blog = getById(id);
-        if (blog == null) {
+        // 1.查询blog，先查缓存，数据库变更后由 tb_cache_outbox 触发删除
+        Blog cached = cacheCLient.queryWithPassThrough(CACHE_BLOG_KEY, id, Blog.class, this::getById, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (cached == null) {
             return Result.fail("笔记不存在！");
         }
+        // 缓存中的对象是共享的，复制一份再填充作者和点赞状态
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         // 2.查询blog有关的用户
         queryBlogUser(blog);
-        // 3.查询blog是否被点赞
-        isBlogLiked(blog);
+        // 3.查询blog的点赞数和是否被点赞
+        fillLikes(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        UserDTO user = userService.queryUserDTO(userId);
+        if (user == null) {
+            return;
+        }
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
 
-    private void isBlogLiked(Blog blog) {
-        // 1.获取登录用户
-        UserDTO user = UserHolder.getUser();
-        if (user == null) {
-            // 用户未登录，无需查询是否点赞
+
+    @Override
+    public Result queryHotBlog(Integer current) {
+        // 1.分页读取热门排行 ZREVRANGE blog:hot start end，不查询 tb_blog
+        int start = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<String> members = stringRedisTemplate.opsForZSet()
+                .reverseRange(BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (members == null || members.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 2.批量查询blog、作者和点赞状态
+        List<Blog> records = queryBlogs(members.stream().map(Long::valueOf).collect(Collectors.toList()));
+        fillUsersAndLikes(records);
+        return Result.ok(records);
+    }
+
+    @Override
+    public void rebuildHotRank() {
+        // 多个节点同时启动或同时对账时只重建一次
+        if (!hotRebuildLock.tryLock(300)) {
             return;
         }
-        Long userId = user.getId();
-        // 2.判断当前登录用户是否已经点赞
-        String key = "blog:liked:" + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        try {
+            // 重建读取的数据库点赞数和未写回的增量必须是同一时刻的，重建期间暂停写回，否则中途写回的增量会被计算两次
+            if (!awaitLikeFlushLock()) {
+                log.warn("等待点赞数写回超时，放弃重建热门排行");
+                return;
+            }
+            try {
+                doRebuildHotRank();
+            } finally {
+                likeFlushLock.unLock();
+            }
+        } finally {
+            hotRebuildLock.unLock();
+        }
     }
 
+    /**
+     * 获取点赞数写回锁，正在写回时最多等待一次写回锁的有效期
+     */
+    private boolean awaitLikeFlushLock() {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!likeFlushLock.tryLock(300)) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
 
     @Override
-    public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
+    public void reconcileHotRank() {
+        // 绕过 Service 直接写入、删除的笔记不会更新排行，数量不一致时从数据库重建
+        Long size = stringRedisTemplate.opsForZSet().zCard(BLOG_HOT_KEY);
+        int count = count();
+        if (size == null || size < count) {
+            log.info("热门笔记排行缺少笔记，排行数量：{}，笔记数量：{}，开始重建", size, count);
+            rebuildHotRank();
+        }
+    }
+
+    private void doRebuildHotRank() {
+        long begin = System.currentTimeMillis();
+        // 1.先写入本次重建独有的临时key，全部写完后 RENAME 替换，重建过程中读到的排行始终完整；
+        // 锁超时后另一个节点开始重建时，两次重建也不会写入同一个临时key
+        String tmpKey = BLOG_HOT_KEY + ":rebuild:" + UUID.randomUUID().toString(true);
+        // 2.尚未写回数据库的点赞数增量
+        Map<Long, Long> pending = new HashMap<>();
+        for (String key : Arrays.asList(BLOG_LIKE_FLUSHING_KEY, BLOG_LIKE_DELTA_KEY)) {
+            stringRedisTemplate.opsForHash().entries(key).forEach((id, delta) ->
+                    pending.merge(Long.valueOf(id.toString()), Long.valueOf(delta.toString()), Long::sum));
+        }
+        // 3.按主键分页读取，只查询计算分数需要的列，每页一次 pipeline 写入
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Blog> blogs = query()
+                    .select("id", "liked", "create_time")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + HOT_REBUILD_BATCH_SIZE)
+                    .list();
+            if (blogs.isEmpty()) {
+                break;
+            }
+            lastId = blogs.get(blogs.size() - 1).getId();
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(blogs.size());
+            for (Blog blog : blogs) {
+                long liked = (blog.getLiked() == null ? 0 : blog.getLiked()) + pending.getOrDefault(blog.getId(), 0L);
+                long createTime = blog.getCreateTime() == null ? System.currentTimeMillis()
+                        : blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), hotScore(liked, createTime)));
+            }
+            stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+            total += blogs.size();
+        }
+        if (total == 0) {
+            stringRedisTemplate.delete(Arrays.asList(BLOG_HOT_KEY, tmpKey));
+            return;
+        }
+        stringRedisTemplate.rename(tmpKey, BLOG_HOT_KEY);
+        log.info("热门笔记排行重建完成，笔记数量：{}，耗时：{}ms", total, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 热度 = 点赞数 + 每小时的发布时间加权。加权只和发布时间有关，点赞时直接 ZINCRBY 即可，不需要定期重新计算；
+     * 越新的笔记加权越大，相当于旧笔记的热度随时间衰减
+     */
+    private double hotScore(long liked, long createTime) {
+        return liked + hotGravity * (createTime - HOT_EPOCH_MILLIS) / 3600000.0;
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        // 1.获取当前用户
+        Long userId = UserHolder.getUser().getId();
+        // 2.合并收件箱和关注的大V发件箱，游标是上一页最小的时间戳，offset 只需要跳过与它相同的元素，翻页深度不影响查询耗时
+        List<ZSetOperations.TypedTuple<String>> typedTuples = feedReadLatency.record(
+                () -> readFeed(userId, max, offset, SystemConstants.MAX_PAGE_SIZE));
+        // 3.非空判断
+        if (typedTuples == null || typedTuples.isEmpty()) {
+            return Result.ok(new ScrollResult());
+        }
+        // 4.解析数据：blogId、minTime（时间戳）、offset（与最小时间戳相同的元素个数）
+        List<Long> ids = new ArrayList<>(typedTuples.size());
+        long minTime = 0;
+        int os = 1;
+        for (ZSetOperations.TypedTuple<String> tuple : typedTuples) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long time = tuple.getScore().longValue();
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        // 整页的时间戳都与上一页的最小时间戳相同，需要累加上一页的 offset
+        if (minTime == max) {
+            os += offset;
+        }
+        // 5.批量查询blog、作者和点赞状态，已删除的blog直接跳过
+        List<Blog> blogs = queryBlogs(ids);
+        fillUsersAndLikes(blogs);
+        // 6.封装并返回
+        ScrollResult r = new ScrollResult();
+        r.setList(blogs);
+        r.setOffset(os);
+        r.setMinTime(minTime);
+        return Result.ok(r);
+    }
+
+    /**
+     * 读取一页 feed：普通作者的笔记已经推送到收件箱 feed:{userId}，大V的笔记只在发件箱 feed:outbox:{authorId}，
+     * 读取时按时间戳 k 路归并。时间戳相同的按 blogId 字符串倒序，与单个 ZSET 的 ZREVRANGE 顺序一致，offset 在多个来源之间依然有效
+     */
+    private List<ZSetOperations.TypedTuple<String>> readFeed(Long userId, long max, int offset, int count) {
+        // 1.关注的大V SINTER follows:userId feed:big-authors
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect("follows:" + userId, FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors == null || bigAuthors.isEmpty()) {
+            // 没有关注大V，直接分页读取收件箱 ZREVRANGEBYSCORE feed:userId max 0 WITHSCORES LIMIT offset count
+            Set<ZSetOperations.TypedTuple<String>> inbox = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(FEED_KEY + userId, 0, max, offset, count);
+            return inbox == null ? Collections.emptyList() : new ArrayList<>(inbox);
+        }
+        // 2.一次 pipeline 读取收件箱和所有大V发件箱的前 offset + count 条
+        List<String> keys = new ArrayList<>(bigAuthors.size() + 1);
+        keys.add(FEED_KEY + userId);
+        bigAuthors.forEach(authorId -> keys.add(FEED_OUTBOX_KEY + authorId));
+        List<Object> sources = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                keys.forEach(key -> operations.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, 0, offset + count));
+                return null;
+            }
         });
-        return Result.ok(records);
+        // 3.k 路归并：每个来源已经有序，堆中只保存每个来源当前的第一个元素
+        Comparator<ZSetOperations.TypedTuple<String>> order = Comparator
+                .comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+        PriorityQueue<PeekingIterator> heads = new PriorityQueue<>(keys.size(), (a, b) -> order.compare(a.peek, b.peek));
+        for (Object source : sources) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) source;
+            Iterator<ZSetOperations.TypedTuple<String>> it = tuples.iterator();
+            if (it.hasNext()) {
+                heads.add(new PeekingIterator(it));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!heads.isEmpty() && page.size() < count) {
+            PeekingIterator head = heads.poll();
+            ZSetOperations.TypedTuple<String> tuple = head.peek;
+            if (head.advance()) {
+                heads.add(head);
+            }
+            // 同一篇笔记可能同时在收件箱和发件箱中(作者刚成为大V)，只保留一次
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            page.add(tuple);
+        }
+        return page;
+    }
+
+    private static class PeekingIterator {
+        private final Iterator<ZSetOperations.TypedTuple<String>> it;
+        private ZSetOperations.TypedTuple<String> peek;
+
+        PeekingIterator(Iterator<ZSetOperations.TypedTuple<String>> it) {
+            this.it = it;
+            this.peek = it.next();
+        }
+
+        boolean advance() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            peek = it.next();
+            return true;
+        }
+    }
+
+    /**
+     * 按传入的顺序批量查询blog，缓存未命中的一次 listByIds 查询数据库
+     */
+    private List<Blog> queryBlogs(List<Long> ids) {
+        Map<Long, Blog> cached = cacheCLient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class,
+                this::listByIds, Blog::getId, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        // 缓存中的对象是共享的，复制一份再填充作者和点赞状态
+        return cached.values().stream()
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 批量填充作者、点赞数和当前用户的点赞状态
+     */
+    private void fillUsersAndLikes(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // 1.批量查询作者
+        Map<Long, UserDTO> users = userService.queryUserDTOs(
+                blogs.stream().map(Blog::getUserId).collect(Collectors.toList()));
+        blogs.forEach(blog -> {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        });
+        // 2.点赞数和点赞状态
+        fillLikes(blogs);
+    }
+
+    /**
+     * 一次 pipeline 查询每篇笔记的 ZCARD 和当前用户的 ZSCORE。
+     * 点赞数以 Redis 中的点赞用户集合为准，缓存的 tb_blog 行中的 liked 要等增量写回之后才会变化
+     */
+    private void fillLikes(List<Blog> blogs) {
+        // 用户未登录，只查询点赞数
+        UserDTO user = UserHolder.getUser();
+        byte[] member = user == null ? null : user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            blogs.forEach(blog -> {
+                byte[] key = (BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8);
+                connection.zSetCommands().zCard(key);
+                if (member != null) {
+                    connection.zSetCommands().zScore(key, member);
+                }
+            });
+            return null;
+        });
+        int step = member == null ? 1 : 2;
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            blog.setLiked(((Long) results.get(i * step)).intValue());
+            if (member != null) {
+                blog.setIsLike(results.get(i * step + 1) != null);
+            }
+        }
     }
 
     @Override
     public Result likeBlog(Long id) {
-        // 1。获取当前登录号用户
+        // 1.获取当前登录用户
         Long userId = UserHolder.getUser().getId();
-        // 2。判断当前用户是否已经点赞
-        String key = BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (null == score){
-            // 3。如果未点赞，可以点赞
-            // 3。1 数据库点赞数 + 1
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            if (isSuccess){
-                // 3。2 保存用户到 Redis 的 set 集合
-                stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
-            }
-        }else {
-            // 4。如果已经攒点，则取消点赞
-            // 4。1 数据库点赞数 - 1
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            if (isSuccess) {
-                // 4。2 把用户从 Redis 的 set 集合中移除
-                stringRedisTemplate.opsForZSet().remove(key,userId.toString());
-            }
+        // 2.判断笔记是否存在
+        if (cacheCLient.queryWithPassThrough(CACHE_BLOG_KEY, id, Blog.class, this::getById, CACHE_BLOG_TTL, TimeUnit.MINUTES) == null) {
+            return Result.fail("笔记不存在！");
         }
+        // 3.执行 Lua 脚本，一次往返切换点赞状态、更新热门排行并记录点赞数增量，由后台定期批量写回数据库
+        stringRedisTemplate.execute(LIKE_SCRIPT, Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKE_DELTA_KEY, BLOG_HOT_KEY),
+                userId.toString(), id.toString(), String.valueOf(System.currentTimeMillis()));
         return Result.ok();
     }
 
+    /**
+     * 把点赞数增量写回 tb_blog。先把增量 hash 改名为 blog:like-delta:flushing，新的点赞写入新的 hash，
+     * 每一批写回数据库后删除这一批；写回失败或进程退出时剩余的增量保留在 flushing 中，下一次优先处理
+     */
+    private void flushLikes() {
+        try {
+            if (!likeFlushLock.tryLock(30)) {
+                // 其他节点正在写回
+                return;
+            }
+            try {
+                likeFlushLatency.record(this::flushLikeDeltas);
+            } finally {
+                likeFlushLock.unLock();
+            }
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败", e);
+        }
+    }
+
+    private void flushLikeDeltas() {
+        // 1.上一次写回没有完成时先处理上一次的增量，否则取出当前的增量
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKE_FLUSHING_KEY))) {
+            if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKE_DELTA_KEY))) {
+                return;
+            }
+            stringRedisTemplate.rename(BLOG_LIKE_DELTA_KEY, BLOG_LIKE_FLUSHING_KEY);
+        }
+        // 2.合并后的增量，同一篇笔记无论点赞多少次都只更新一次
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(BLOG_LIKE_FLUSHING_KEY);
+        Map<Long, Long> deltas = new HashMap<>(Math.min(entries.size(), likeFlushBatchSize));
+        List<Object> fields = new ArrayList<>(Math.min(entries.size(), likeFlushBatchSize));
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            fields.add(entry.getKey());
+            long delta = Long.parseLong(entry.getValue().toString());
+            if (delta != 0) {
+                // 点赞后又取消的不需要更新
+                deltas.put(Long.valueOf(entry.getKey().toString()), delta);
+            }
+            // 3.每 batchSize 篇笔记一条 UPDATE
+            if (fields.size() == likeFlushBatchSize) {
+                flushLikeBatch(deltas, fields);
+            }
+        }
+        if (!fields.isEmpty()) {
+            flushLikeBatch(deltas, fields);
+        }
+        // 4.全部写回后删除
+        stringRedisTemplate.delete(BLOG_LIKE_FLUSHING_KEY);
+    }
+
+    /**
+     * 写回一批增量，UPDATE 成功后立即从 flushing 中删除这一批，
+     * 后面的批次失败时重试不会把已经写回的增量再加一次，进程在两步之间退出时最多重复一批
+     */
+    private void flushLikeBatch(Map<Long, Long> deltas, List<Object> fields) {
+        if (!deltas.isEmpty()) {
+            getBaseMapper().incrLikedBatch(deltas);
+            likeFlushed.increment(deltas.size());
+        }
+        stringRedisTemplate.opsForHash().delete(BLOG_LIKE_FLUSHING_KEY, fields.toArray());
+        deltas.clear();
+        fields.clear();
+    }
+
     @Override
     public Result queryBloglikes(Long id) {
         String key = BLOG_LIKED_KEY + id;
@@ -140,39 +569,46 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 2。解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 3。根据用户id查询用户
-        String idStr = StrUtil.join( ",",ids);
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")")
-                .list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class
-                        ))
-                .collect(Collectors.toList());
+        // 3。根据用户id批量查询用户，按点赞顺序返回
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOs(ids).values());
         return Result.ok(userDTOS);
     }
 
     @Override
     public Result saveBlog(Blog blog) {
-        // 获取登录用户
+        // 1.获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
-        // 保存探店博文
+        // 2.保存探店博文
         boolean success = save(blog);
         if (!success){
             return Result.fail("新增笔记失败！");
         }
-        // 3.查询笔记作者的所有粉丝
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        // 4.推送笔记id给所有的粉丝
-        follows.stream().forEach(v -> {
-            Long userId = v.getUserId();
-            String key = "feed:" + userId;
-            stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis());
-                }
-        );
-        //
-        return null;
+        long now = System.currentTimeMillis();
+        // 3.加入热门排行
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, blog.getId().toString(), hotScore(0, now));
+        // 4.在后台分页查询粉丝并推送笔记id，发布请求不等待推送完成
+        feedFanout.publish(user.getId(), blog.getId(), now);
+        // 5.返回id
+        return Result.ok(blog.getId());
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        if (success) {
+            // 删除的笔记移出热门排行
+            stringRedisTemplate.opsForZSet().remove(BLOG_HOT_KEY, id.toString());
+        }
+        return success;
+    }
+
+    @Override
+    public boolean removeByIds(Collection<? extends Serializable> idList) {
+        boolean success = super.removeByIds(idList);
+        if (success) {
+            stringRedisTemplate.opsForZSet().remove(BLOG_HOT_KEY, idList.stream().map(String::valueOf).toArray());
+        }
+        return success;
     }
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -10,14 +9,19 @@ import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.UserHolder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.FEED_FANS_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -35,6 +39,13 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Autowired
     private UserServiceImpl userService;
 
+    private static final DefaultRedisScript<Long> FANS_INCR_SCRIPT;
+    static {
+        FANS_INCR_SCRIPT = new DefaultRedisScript<>();
+        FANS_INCR_SCRIPT.setLocation(new ClassPathResource("fans_incr.lua"));
+        FANS_INCR_SCRIPT.setResultType(Long.class);
+    }
+
     @Override
     public Result follow(Long followUserId, Boolean isFollow) {
         Long userId = UserHolder.getUser().getId();
@@ -49,6 +60,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             if (isSuccess) {
                 // 把关注用户的id，放入redis的set集合 sadd userId followerUserId
                 stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+                // 被关注用户的粉丝数量 +1，发布笔记时据此判断是否是大V
+                stringRedisTemplate.execute(FANS_INCR_SCRIPT,
+                        Collections.singletonList(FEED_FANS_KEY + followUserId), "1");
             }
         } else {
             // 3.取关，删除 delete from tb_follow where user_id = ? and follow_user_id = ?
@@ -57,6 +71,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             if (isSuccess) {
                 // 把关注用户的id从Redis集合中移除
                 stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+                stringRedisTemplate.execute(FANS_INCR_SCRIPT,
+                        Collections.singletonList(FEED_FANS_KEY + followUserId), "-1");
             }
         }
         return Result.ok();
@@ -86,11 +102,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         // 3.解析id集合
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 4.查询用户
-        List<UserDTO> users = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 4.批量查询用户
+        List<UserDTO> users = new ArrayList<>(userService.queryUserDTOs(ids).values());
         return Result.ok(users);
     }
 }
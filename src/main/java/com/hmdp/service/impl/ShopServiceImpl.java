@@ -1,9 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,9 +8,8 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheCLient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.IBloomFilter;
 import com.hmdp.utils.SystemConstants;
-import com.sun.corba.se.spi.ior.iiop.IIOPFactories;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -24,13 +20,11 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
+import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -52,168 +46,49 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private CacheCLient cacheCLient;
 
+    @Resource
+    private IBloomFilter shopBloomFilter;
+
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = super.save(shop);
+        if (success) {
+            // 新增的店铺立即加入本节点的布隆过滤器，其他节点由缓存失效中继广播
+            shopBloomFilter.add(shop.getId());
+        }
+        return success;
+    }
+
     @Override
     public Result queryById(Long id) {
 
 //        Shop shop = queryWithMutex(id);
-        Shop shop = cacheCLient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Shop shop = cacheCLient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, shopBloomFilter::mightContain, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
 
         return Result.ok(shop);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
      * 逻辑过期解决缓存击穿问题
      */
     public Shop queryWithLogicalExpire(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断redis中是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            // 3。未命中，直接返回
-            return null;
-        }
-        // 4.命中，需要先把 json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            // 5.1未过期，直接返回店铺信息
-            return shop;
-        }
-        // 6。过期,需要进行缓存重建
-        // 6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2 判断是否获取锁成功
-        if (isLock){
-            // 6.3 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShop2Redis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
-
-            });
-
-        }
-        // 6.4 否则，返回过期的店铺信息
-        return shop;
+        return cacheCLient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
 
     /**
      * 互斥锁逻辑解决缓存击穿问题
      */
     public Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断redis中是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        // 命中空值
-        if (shopJson != null) {
-            // 返回一个错误信息
-            return null;
-        }
-        // 4.实现缓存重建
-        // 4.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2 判断是否获取成功
-            if (!isLock){
-                // 4.3 失败，休眠并重试
-                Thread.sleep(50);
-                queryWithMutex(id);
-
-            }
-
-            // 4.4 获取互斥锁成功，根据id查询数据库，进行缓存数据重建
-            shop = getById(id);
-            if (null == shop){
-                // 将空值写入 redis
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 5.不存在，返回错误
-                return null;
-            }
-            // 6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7.释放互斥锁
-            unLock(lockKey);
-        }
-        // 8.返回
-        return shop;
-    }
-
-
-    /**
-     * 缓存穿透的解决方案,旧代码
-     * @param id
-     * @return
-     */
-    public Shop queryWithPassThrough(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断redis中是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        // 命中空值
-        if (shopJson != null) {
-            // 返回一个错误信息
-            return null;
-        }
-        // 4.不存在，根据id查询数据库
-        Shop shop = getById(id);
-        if (null == shop){
-            // 将空值写入 redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 5.不存在，返回错误
-            return null;
-        }
-        // 6.存在，写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 7.返回
-        return shop;
-    }
-
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+        return cacheCLient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, shopBloomFilter::mightContain, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
-    }
 
     public void saveShop2Redis(Long id,Long expireSeconds){
         // 1.查询店铺信息
         Shop shop = getById(id);
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3.写入 Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
+        // 2.写入 Redis，并设置逻辑过期时间
+        cacheCLient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -225,8 +100,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1.更新数据库
         updateById(shop);
-        // 2。删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2。事务提交之后删除缓存，同时通知所有节点删除本地缓存；绕过该方法的写入由 tb_cache_outbox 兜底
+        cacheCLient.deleteAfterCommit(CACHE_SHOP_KEY + id);
         return null;
     }
 
@@ -1,10 +1,35 @@
 package com.hmdp.service.impl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheCLient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
@@ -14,7 +39,143 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Autowired
+    private CacheCLient cacheCLient;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * 检查 Redis 中版本号的间隔(ms)
+     */
+    @Value("${hmdp.shop-type.refresh-interval:5000}")
+    private long refreshInterval;
+
+    // 当前的店铺类型列表快照
+    private volatile ShopTypeSnapshot snapshot;
+
+    // 版本号检查线程
+    private final ScheduledExecutorService snapshotRefreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        // 定时检查版本号，其他节点修改店铺类型后，本节点最多延迟一个周期刷新快照
+        snapshotRefreshExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                long version = currentVersion();
+                ShopTypeSnapshot current = snapshot;
+                if (current != null && current.getVersion() != version) {
+                    rebuildSnapshot(version);
+                }
+            } catch (Exception e) {
+                log.error("刷新店铺类型快照失败", e);
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        snapshotRefreshExecutor.shutdown();
+    }
+
+    @Override
+    public ShopTypeSnapshot queryTypeSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                rebuildSnapshot(currentVersion());
+            }
+            return snapshot;
+        }
+    }
+
+    @Override
+    public List<ShopType> queryTypeList() {
+        ShopType[] types = cacheCLient.queryWithPassThrough(CACHE_SHOP_TYPE_KEY, "list", ShopType[].class,
+                key -> loadTypes(), CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        return types == null ? Collections.emptyList() : Arrays.asList(types);
+    }
+
+    @Override
+    public List<ShopType> refreshTypeList() {
+        ShopType[] types = loadTypes();
+        cacheCLient.set(CACHE_SHOP_TYPE_KEY + "list", types, CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        return Arrays.asList(types);
+    }
+
+    @Override
+    public boolean save(ShopType shopType) {
+        boolean success = super.save(shopType);
+        if (success) {
+            onTypesChanged();
+        }
+        return success;
+    }
+
+    @Override
+    public boolean updateById(ShopType shopType) {
+        boolean success = super.updateById(shopType);
+        if (success) {
+            onTypesChanged();
+        }
+        return success;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        if (success) {
+            onTypesChanged();
+        }
+        return success;
+    }
+
+    @Override
+    public boolean removeByIds(Collection<? extends Serializable> idList) {
+        boolean success = super.removeByIds(idList);
+        if (success) {
+            onTypesChanged();
+        }
+        return success;
+    }
+
+    /**
+     * 店铺类型修改后：删除缓存，版本号加一，所有节点在下一次检查时刷新快照
+     */
+    private void onTypesChanged() {
+        cacheCLient.delete(CACHE_SHOP_TYPE_KEY + "list");
+        Long version = stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        rebuildSnapshot(version == null ? 0 : version);
+    }
+
+    private synchronized void rebuildSnapshot(long version) {
+        // 响应体只序列化一次，ETag 使用内容的摘要，各节点相同的数据得到相同的 ETag。
+        // 直接查询数据库：本地缓存的失效广播可能晚于版本号到达，从缓存读取会把旧列表固定在新版本号下
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Result.ok(Arrays.asList(loadTypes())));
+            String etag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+            snapshot = new ShopTypeSnapshot(version, etag, body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("店铺类型序列化失败", e);
+        }
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private ShopType[] loadTypes() {
+        return query().orderByAsc("sort").list().toArray(new ShopType[0]);
+    }
 }
@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheCLient;
+import com.hmdp.utils.IBloomFilter;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -19,14 +21,18 @@ import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -45,6 +51,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IBloomFilter userBloomFilter;
+
+    @Autowired
+    private CacheCLient cacheCLient;
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1。检验手机号
@@ -109,6 +121,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        // 新用户立即加入本节点的布隆过滤器，其他节点由缓存失效中继广播
+        userBloomFilter.add(user.getId());
         return user;
     }
 
@@ -170,4 +184,47 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         }
         return Result.ok(count);
     }
+
+    @Override
+    public UserDTO queryUserDTO(Long id) {
+        return cacheCLient.queryWithPassThrough(CACHE_USER_KEY, id, UserDTO.class, userBloomFilter::mightContain,
+                userId -> {
+                    User user = getById(userId);
+                    return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+                }, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Result updateProfile(UserDTO userDTO) {
+        // 只允许修改自己的昵称和头像
+        User user = new User();
+        user.setId(UserHolder.getUser().getId());
+        user.setNickName(userDTO.getNickName());
+        user.setIcon(userDTO.getIcon());
+        updateById(user);
+        return Result.ok();
+    }
+
+    @Override
+    public boolean updateById(User user) {
+        boolean success = super.updateById(user);
+        if (success) {
+            // 事务提交之后删除用户缓存，同时通知所有节点删除本地缓存
+            cacheCLient.deleteAfterCommit(CACHE_USER_KEY + user.getId());
+        }
+        return success;
+    }
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        // 缓存中没有的用户一次 listByIds 查询数据库
+        return cacheCLient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
@@ -3,32 +3,61 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillLimiter;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStock;
 import com.hmdp.utils.UserHolder;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_QUEUE;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_QUEUES_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
 
 /**
  * <p>
@@ -48,98 +77,255 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private SeckillLimiter seckillLimiter;
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
     @Autowired
-    private RedissonClient redissonClient;
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
 
-    // 初始化 Lua 脚本
-
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SeckillStock seckillStock;
 
     // 阻塞队列
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
+    private static final String QUEUE_NAME = SECKILL_ORDER_QUEUE;
+    private static final String GROUP_NAME = "g1";
+    // 死信队列，超过最大投递次数仍处理失败的订单消息
+    private static final String DEAD_LETTER_QUEUE = "stream.orders.dlq";
+    // 没有待处理消息、且空闲超过该时间的消费者从组中删除
+    private static final long CONSUMER_EXPIRE_MS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * 消费者数量，每个消费者一个线程，消费者名称在组内唯一
+     */
+    @Value("${hmdp.order.consumer-count:4}")
+    private int consumerCount;
+
+    /**
+     * 每次 XREADGROUP 读取的消息条数，一批消息一次落库、一次ACK
+     */
+    @Value("${hmdp.order.batch-size:64}")
+    private int batchSize;
+
+    /**
+     * PendingList 回收间隔，以及消息空闲多久被认为消费者已宕机
+     */
+    @Value("${hmdp.order.reclaim-interval:5000}")
+    private long reclaimIntervalMs;
+
+    @Value("${hmdp.order.reclaim-min-idle:30000}")
+    private long reclaimMinIdleMs;
+
+    /**
+     * 最大投递次数，超过后转入死信队列
+     */
+    @Value("${hmdp.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+
+    // 本地售罄标记，10秒后过期，放行一个请求到 Redis 重新确认
+    private final SeckillSoldOutFlags soldOutFlags = new SeckillSoldOutFlags(10, TimeUnit.SECONDS);
+
+    // 本地缓存的秒杀时间窗口 [开始毫秒数, 结束毫秒数]，时间窗口外的请求不访问 Redis。
+    // 数量有上限，过期后重新查询，修改后的时间窗口最多延迟一个有效期生效；不存在的优惠券不缓存，由脚本返回库存不足
+    private final Cache<Long, long[]> seckillWindows = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // PendingList 回收线程，同时定时读取登记的分片订单队列
+    private final ScheduledExecutorService reclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // 订单消费者读取的队列：未分片优惠券共用的 stream.orders，以及分片优惠券登记的 stream.orders:{shard:n}
+    private volatile List<String> orderQueues = Collections.singletonList(QUEUE_NAME);
+
+    // 每个队列一个回收任务，只在回收线程中访问
+    private final Map<String, PendingOrderReclaimer> reclaimers = new HashMap<>();
+
+    // 监控指标：PEL 深度、回收耗时、回收成功数、死信数
+    private final AtomicLong pendingDepth = new AtomicLong();
+    private Timer reclaimTimer;
+    private Counter reclaimedCounter;
+    private Counter deadLetterCounter;
 
     /**
      *  @PostConstruct注解  当前类初始化完毕之后就会执行
      */
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VocherOrderhandler());
+        // 消费者名称：进程名(pid@host) + 序号，保证多节点、多线程下唯一
+        String nodeName = ManagementFactory.getRuntimeMXBean().getName();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VocherOrderhandler("c-" + nodeName + "-" + i));
+        }
+        // 监控指标
+        meterRegistry.gauge("order.stream.pending", pendingDepth);
+        reclaimTimer = meterRegistry.timer("order.stream.reclaim.latency");
+        reclaimedCounter = meterRegistry.counter("order.stream.reclaimed");
+        deadLetterCounter = meterRegistry.counter("order.stream.dead.letter");
+        // 订阅售罄、补货广播，同步其他节点的售罄标记，消息格式：优惠券id:补货代数
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            soldOutFlags.markSoldOut(Long.valueOf(body[0]), Long.parseLong(body[1]));
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            soldOutFlags.onRestock(Long.valueOf(body[0]), Long.parseLong(body[1]));
+        }, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        // 定时读取登记的分片订单队列，并回收整个组中宕机消费者遗留的消息
+        reclaimExecutor.scheduleWithFixedDelay(this::refreshQueues, 0, reclaimIntervalMs, TimeUnit.MILLISECONDS);
+        reclaimExecutor.scheduleWithFixedDelay(() -> reclaim("c-" + nodeName + "-reclaimer"),
+                reclaimIntervalMs, reclaimIntervalMs, TimeUnit.MILLISECONDS);
     }
 
+    @PreDestroy
+    private void destroy(){
+        seckillOrderExecutor.shutdownNow();
+        reclaimExecutor.shutdownNow();
+    }
 
-    // 线程任务--版本二
-    private class VocherOrderhandler implements Runnable {
-        private final String queueName = "stream.orders";
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    initStream();
-                    // 1.获取消息队列中的订单信息 xreadgroup group g1 c1 count 1 block 2000 streams.order
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    // 2。判断消息获取是否成功
-                    if (null == list || list.isEmpty()){
-                        // 获取消息失败，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 3。如果获取成功，创建订单
-                    // 4。解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> objectObjectMap = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(objectObjectMap, new VoucherOrder(), true);
-                    handlerVocherOrder(voucherOrder);
-                    // 5。ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常",e);
-                    // 处理PendingList中的消息
-                    handlePendingList();
+    /**
+     * 读取开启分片的优惠券登记的订单队列，新出现的队列先创建消费者组
+     */
+    private void refreshQueues() {
+        try {
+            Set<String> registered = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_QUEUES_KEY);
+            if (registered == null || registered.size() + 1 == orderQueues.size()) {
+                return;
+            }
+            List<String> queues = new ArrayList<>(registered.size() + 1);
+            queues.add(QUEUE_NAME);
+            for (String queue : registered) {
+                if (!orderQueues.contains(queue)) {
+                    // 分片队列只有订单消息，从头读取，消费者组创建之前写入的订单也不会丢失
+                    initStream(queue, ReadOffset.from("0"));
                 }
+                queues.add(queue);
             }
+            orderQueues = queues;
+            log.info("订单消息队列：{}", queues);
+        } catch (Exception e) {
+            log.error("读取订单消息队列异常", e);
+        }
+    }
+
+    private void reclaim(String consumerName) {
+        long depth = 0;
+        for (String queue : orderQueues) {
+            PendingOrderReclaimer reclaimer = reclaimers.computeIfAbsent(queue,
+                    q -> new PendingOrderReclaimer(q, DEAD_LETTER_QUEUE, consumerName));
+            reclaimer.run();
+            depth += reclaimer.depth;
         }
+        pendingDepth.set(depth);
+    }
 
-        public void initStream(){
+    private void initStream(String queueName, ReadOffset offset) {
+        try {
             Boolean exists = stringRedisTemplate.hasKey(queueName);
             if (BooleanUtil.isFalse(exists)) {
-                log.info("stream不存在，开始创建stream");
+                log.info("stream不存在，开始创建stream：{}", queueName);
                 // 不存在，需要创建
-                stringRedisTemplate.opsForStream().createGroup(queueName, ReadOffset.latest(), "g1");
+                stringRedisTemplate.opsForStream().createGroup(queueName, offset, GROUP_NAME);
                 log.info("stream和group创建完毕");
                 return;
             }
             // stream存在，判断group是否存在
             StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(queueName);
             if(groups.isEmpty()){
-                log.info("group不存在，开始创建group");
+                log.info("group不存在，开始创建group：{}", queueName);
                 // group不存在，创建group
-                stringRedisTemplate.opsForStream().createGroup(queueName, ReadOffset.latest(), "g1");
+                stringRedisTemplate.opsForStream().createGroup(queueName, offset, GROUP_NAME);
                 log.info("group创建完毕");
             }
+        } catch (Exception e) {
+            // 多个消费者同时创建时会返回 BUSYGROUP，忽略即可
+            log.warn("初始化stream异常：{}", e.getMessage());
+        }
+    }
+
+
+    // 线程任务--版本三，多消费者批量消费，轮流读取所有订单队列
+    private class VocherOrderhandler implements Runnable {
+        private final String consumerName;
+
+        // 所有队列都没有消息时轮流阻塞等待的队列序号
+        private int round;
+
+        VocherOrderhandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            initStream(QUEUE_NAME, ReadOffset.latest());
+            while (!Thread.currentThread().isInterrupted()) {
+                List<String> queues = orderQueues;
+                int received = 0;
+                for (String queue : queues) {
+                    received += consume(queue, null);
+                }
+                if (received == 0) {
+                    // 所有队列都没有消息，阻塞等待其中一个队列；只有一个队列时与原来一样阻塞2秒，其他队列的消息最多等待一次阻塞时间
+                    String queue = queues.get(round++ % queues.size());
+                    consume(queue, Duration.ofMillis(queues.size() == 1 ? 2000 : 200));
+                }
+            }
+        }
+
+        /**
+         * 读取一个队列的一批消息
+         * @param block 阻塞时间，null 表示不阻塞
+         * @return 读到的消息数量
+         */
+        private int consume(String queueName, Duration block) {
+            try {
+                // 1.获取消息队列中的订单信息 xreadgroup group g1 consumerName count batchSize block 2000 streams stream.orders >
+                StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, consumerName),
+                        block == null ? options : options.block(block),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                // 2。判断消息获取是否成功
+                if (null == list || list.isEmpty()){
+                    // 获取消息失败，说明没有消息，继续读取下一个队列
+                    return 0;
+                }
+                // 3。批量创建订单并ACK，有未确认的消息则去处理PendingList
+                if (handleRecords(queueName, list) < list.size()) {
+                    handlePendingList(queueName);
+                }
+                return list.size();
+            } catch (Exception e) {
+                log.error("处理订单异常",e);
+                initStream(queueName, QUEUE_NAME.equals(queueName) ? ReadOffset.latest() : ReadOffset.from("0"));
+                // 处理PendingList中的消息
+                handlePendingList(queueName);
+                return 0;
+            }
         }
 
-        private void handlePendingList() {
-            while (true) {
+        private void handlePendingList(String queueName) {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    // 1.获取PendingList中的订单信息 xreadgroup group g1 c1 count 1 block 2000 streams.order
+                    // 1.获取PendingList中的订单信息 xreadgroup group g1 consumerName count batchSize streams stream.orders 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
                             StreamOffset.create(queueName, ReadOffset.from("0"))
                     );
                     // 2。判断消息获取是否成功
@@ -147,25 +333,159 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         // 获取消息失败，说明PendingList没有消息，继续下一次循环
                         break;
                     }
-                    // 3。如果获取成功，创建订单
-                    // 4。解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> objectObjectMap = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(objectObjectMap, new VoucherOrder(), true);
-                    handlerVocherOrder(voucherOrder);
-                    // 5。ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    // 3。批量创建订单并ACK，仍有处理失败的消息则留在PendingList，避免空转
+                    if (handleRecords(queueName, list) < list.size()) {
+                        break;
+                    }
                 } catch (Exception e) {
                     log.error("处理PendingList消息异常",e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+    }
+
+    // 回收任务：扫描 g1 所有消费者的 PendingList，认领空闲超时的消息重新处理
+    private class PendingOrderReclaimer implements Runnable {
+        private final String queueName;
+        private final String deadLetterQueue;
+        private final String consumerName;
+
+        // 上一次回收时的 PEL 深度
+        private long depth;
+
+        PendingOrderReclaimer(String queueName, String deadLetterQueue, String consumerName) {
+            this.queueName = queueName;
+            this.deadLetterQueue = deadLetterQueue;
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            try {
+                reclaimTimer.record(this::reclaim);
+            } catch (Exception e) {
+                log.error("回收PendingList消息异常", e);
+            }
+        }
+
+        private void reclaim() {
+            // 1.统计 PEL 深度 XPENDING stream.orders g1
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, GROUP_NAME);
+            depth = summary == null ? 0 : summary.getTotalPendingMessages();
+            if (depth > 0) {
+                // 2.分页扫描整个组的 PEL XPENDING stream.orders g1 lastId + batchSize
+                String lastId = "-";
+                while (!Thread.currentThread().isInterrupted()) {
+                    PendingMessages pending = stringRedisTemplate.opsForStream().pending(queueName, GROUP_NAME,
+                            Range.rightUnbounded(Range.Bound.inclusive(lastId)), batchSize);
+                    // 2.1 记录空闲超时的消息及其投递次数，跳过上一页的最后一条
+                    Map<RecordId, Long> deliveries = new HashMap<>();
+                    for (PendingMessage message : pending) {
+                        if (!message.getIdAsString().equals(lastId)
+                                && message.getElapsedTimeSinceLastDelivery().toMillis() >= reclaimMinIdleMs) {
+                            deliveries.put(message.getId(), message.getTotalDeliveryCount());
+                        }
                     }
+                    if (!deliveries.isEmpty()) {
+                        claimAndHandle(deliveries);
+                    }
+                    if (pending.size() < batchSize) {
+                        break;
+                    }
+                    lastId = pending.get(pending.size() - 1).getIdAsString();
+                }
+            }
+            // 3.清理已经没有待处理消息的过期消费者
+            removeIdleConsumers();
+        }
+
+        private void claimAndHandle(Map<RecordId, Long> deliveries) {
+            // 1.批量认领 XCLAIM stream.orders g1 consumerName minIdle id...，minIdle 保证多个节点不会重复认领
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(
+                            queueName.getBytes(StandardCharsets.UTF_8), GROUP_NAME, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdleMs(reclaimMinIdleMs)
+                                    .ids(deliveries.keySet().toArray(new RecordId[0]))));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            // 2.超过最大投递次数的转入死信队列，其余重新处理
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+            for (ByteRecord byteRecord : claimed) {
+                MapRecord<String, Object, Object> record = byteRecord.deserialize(
+                        StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8);
+                // XCLAIM 会使投递次数 +1
+                long count = deliveries.getOrDefault(record.getId(), 0L) + 1;
+                if (count > maxDeliveries) {
+                    deadLetter(record, count);
+                } else {
+                    records.add(record);
                 }
             }
+            if (!records.isEmpty()) {
+                reclaimedCounter.increment(handleRecords(queueName, records));
+            }
+        }
+
+        private void deadLetter(MapRecord<String, Object, Object> record, long count) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("sourceId", record.getId().getValue());
+            value.put("deliveries", String.valueOf(count));
+            stringRedisTemplate.opsForStream().add(deadLetterQueue, value);
+            stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, record.getId());
+            deadLetterCounter.increment();
+            log.error("订单消息投递{}次仍处理失败，已转入死信队列：{}", count, value);
         }
 
+        private void removeIdleConsumers() {
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(queueName, GROUP_NAME);
+            consumers.forEach(consumer -> {
+                if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > CONSUMER_EXPIRE_MS) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(queueName, Consumer.from(GROUP_NAME, consumer.consumerName()));
+                    log.info("删除过期消费者：{}", consumer.consumerName());
+                }
+            });
+        }
+    }
+
+    /**
+     * 批量处理一批消息：整批落库成功后一次性ACK；整批失败时逐条处理，只ACK处理成功的消息
+     * @return 已ACK的消息数量
+     */
+    private int handleRecords(String queueName, List<MapRecord<String, Object, Object>> records) {
+        // 1.解析消息中的订单信息
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        List<RecordId> ackIds = new ArrayList<>(records.size());
+        try {
+            // 2.整批创建订单
+            proxy.createVoucherOrders(voucherOrders);
+            records.forEach(record -> ackIds.add(record.getId()));
+        } catch (Exception e) {
+            log.error("批量创建订单异常，转为逐条处理", e);
+            // 3.逐条创建订单
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    handlerVocherOrder(voucherOrders.get(i));
+                    ackIds.add(records.get(i).getId());
+                } catch (Exception ex) {
+                    log.error("处理订单异常，订单：{}", voucherOrders.get(i), ex);
+                }
+            }
+        }
+        // 4。ACK确认
+        if (!ackIds.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, ackIds.toArray(new RecordId[0]));
+        }
+        return ackIds.size();
     }
 
 
@@ -189,63 +509,121 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     private void handlerVocherOrder(VoucherOrder voucherOrder) {
-        // 获取用户id
-        Long userId = voucherOrder.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock){
-            // 获取锁失败，返回错误
-            log.error("不允许重复下单！");
-            return ;
-        }
-
-        // 获取代理对象（事务才能生效）
-        try {
-
-              proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            lock.unlock();
-        }
-
+        // 一人一单由 Lua 脚本和 (user_id, voucher_id) 唯一索引保证，重复投递的消息直接忽略，无需再加分布式锁
+        proxy.createVoucherOrder(voucherOrder);
     }
 
 
 
 
+    // 代理对象（事务才能生效），消费线程中无法通过 AopContext 获取
+    @Lazy
+    @Autowired
     private IVoucherOrderService proxy;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本地校验售罄、时间窗口、限流
+        Result rejected = preCheck(voucherId);
+        if (rejected != null) {
+            return rejected;
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
         // 获取订单id
         long orderId = redisIdWorker.nextId("order");
+        // 执行脚本前记录补货代数，脚本执行期间发生补货时，这次的售罄结果会被丢弃
+        long generation = soldOutFlags.generation(voucherId);
 
 
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-
-        );
+        // 1.执行lua脚本，只访问用户所在的库存分片，借不到库存时才是售罄，借到的库存被抢走时返回系统繁忙
+        int result = seckillStock.deduct(voucherId, userId, orderId, QUEUE_NAME);
         // 2.判断结果是否为0
-        int r = result.intValue();
-        if (r != 0){
-            // 2.1 不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
-        }
+        return toSeckillResult(voucherId, result, orderId, generation);
 
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
 
+    }
+
+    /**
+     * 非阻塞版：通过 Lettuce 的响应式 API 执行脚本，等待 Redis 期间不占用 Tomcat 线程。
+     * 本地校验和生成订单id在时间窗口缓存未命中（查数据库）、领取全局令牌、号段用完时会阻塞，放到弹性线程池中执行
+     */
+    @Override
+    public Mono<Result> seckillVoucherAsync(Long voucherId) {
+        // 获取用户id，必须在请求线程中读取 ThreadLocal
+        Long userId = UserHolder.getUser().getId();
+        return Mono.defer(() -> {
+            // 本地校验售罄、时间窗口、限流
+            Result rejected = preCheck(voucherId);
+            if (rejected != null) {
+                return Mono.just(rejected);
+            }
+            // 获取订单id
+            long orderId = redisIdWorker.nextId("order");
+            long generation = soldOutFlags.generation(voucherId);
+            // 1.执行lua脚本
+            return seckillStock.deductAsync(voucherId, userId, orderId, QUEUE_NAME).flatMap(r -> {
+                if (r == SeckillStock.SOLD_OUT && soldOutFlags.markSoldOut(voucherId, generation)) {
+                    // 2.1 第一次发现库存不足，标记售罄并通知其他节点，不能在 Lettuce 的 IO 线程中执行阻塞调用
+                    return reactiveStringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":" + generation)
+                            .thenReturn(Result.fail(SECKILL_FAIL_MESSAGES[r]));
+                }
+                return Mono.just(r == 0 ? Result.ok(orderId) : Result.fail(SECKILL_FAIL_MESSAGES[r]));
+            });
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 执行脚本前的本地校验
+     * @return 被拒绝时返回错误信息，通过校验返回 null
+     */
+    private Result preCheck(Long voucherId) {
+        // 本地已标记售罄，直接返回
+        if (soldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 判断是否在秒杀时间内，开抢前的请求直接返回
+        long[] window = seckillWindows.get(voucherId, this::loadSeckillWindow);
+        long now = System.currentTimeMillis();
+        if (window != null && now < window[0]) {
+            return Result.fail("秒杀尚未开始！");
+        }
+        if (window != null && now > window[1]) {
+            return Result.fail("秒杀已经结束！");
+        }
+        // 限流，超出的请求直接返回，不再生成订单id、执行脚本
+        if (!seckillLimiter.tryAcquire(voucherId)) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        return null;
+    }
 
+    private Result toSeckillResult(Long voucherId, int r, long orderId, long generation) {
+        if (r == SeckillStock.SOLD_OUT && soldOutFlags.markSoldOut(voucherId, generation)) {
+            // 2.1 第一次发现库存不足，标记售罄并通知其他节点
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":" + generation);
+        }
+        if (r != 0){
+            // 2.2 不为0，代表没有购买资格
+            return Result.fail(SECKILL_FAIL_MESSAGES[r]);
+        }
         // 3.返回订单id
         return Result.ok(orderId);
+    }
 
+    // 秒杀脚本返回值对应的提示信息
+    private static final String[] SECKILL_FAIL_MESSAGES = {null, "库存不足", "不能重复下单", "秒杀尚未开始！", "秒杀已经结束！",
+            "系统繁忙，请稍后重试"};
 
+    private long[] loadSeckillWindow(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return null;
+        }
+        return new long[]{
+                voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+        };
     }
 
 
@@ -341,34 +719,33 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 ////        }
 //    }
 
+    @Override
     @Transactional(rollbackFor = Exception.class)
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5.一人一单
-        Long userId = voucherOrder.getUserId();
-
-        // 5.1 查询订单
-        Integer count = query().eq("user_id", userId).eq("voucher_id", voucherOrder).count();
-        // 5.2 判断订单是否存在
-        if (count > 0) {
-            log.error("用户已经购买过一次了！不允许再抢购！");
-            return;
-        }
+        createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
 
-        // 6.扣减库存
-        boolean success = seckillVoucherService.update().setSql("stock = stock - 1").eq("voucher_id", voucherOrder).gt("stock", 0).update();
-        if (!success) {
-            log.error("扣减库存失败");
-            return;
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，每个优惠券一条多行 INSERT IGNORE，一条 UPDATE
+        Map<Long, List<VoucherOrder>> orderMap = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : orderMap.entrySet()) {
+            // 2.创建订单，主键或 (user_id, voucher_id) 重复的订单（消息重复投递、重复下单）会被忽略
+            int count = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (count == 0) {
+                continue;
+            }
+            // 3.只为真正插入的订单扣减库存
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", count)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("扣减库存失败，voucherId：" + entry.getKey());
+            }
         }
-        // 7.创建订单
-//        VoucherOrder voucherOrder = new VoucherOrder();
-//        long orderId = redisIdWorker.nextId("order");
-//        voucherOrder.setId(orderId);
-//        voucherOrder.setUserId(UserHolder.getUser().getId());
-//        voucherOrder.setVoucherId(voucherOrder);
-        save(voucherOrder);
-//        return Result.ok(voucherOrder);
-
-
     }
 }
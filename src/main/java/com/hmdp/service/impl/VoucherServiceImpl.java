@@ -7,15 +7,27 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStock;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_QUEUE;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_QUEUES_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_GEN_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 
 /**
  * <p>
@@ -34,6 +46,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStock seckillStock;
+
+    /**
+     * 秒杀库存分片数量，大于1时库存拆分到多个 key 中
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -45,6 +66,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Override
     @Transactional(rollbackFor = Exception.class)
     public void addSeckillVoucher(Voucher voucher) {
+        addSeckillVoucher(voucher, stockShards);
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public void addSeckillVoucher(Voucher voucher, int stockShards) {
         // 保存优惠券
         save(voucher);
         // 保存秒杀信息
@@ -54,7 +81,69 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 保存秒杀时间窗口到 Redis 中，由秒杀脚本校验
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
         // 保存秒杀库存到 Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        if (stockShards <= 1) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + voucher.getId(), window);
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+            return;
+        }
+        // 分片模式：每个分片一份时间窗口，库存均分到 stockShards 个分片，余数分给前几个分片，分片数量最后一起写入
+        Map<String, String> stockMap = new HashMap<>(stockShards + 1);
+        int[] shardStocks = splitStock(voucher.getStock(), stockShards);
+        String[] queues = new String[stockShards];
+        for (int i = 0; i < stockShards; i++) {
+            stringRedisTemplate.opsForHash().putAll(SeckillStock.windowKey(voucher.getId(), i), window);
+            stockMap.put(SeckillStock.stockKey(voucher.getId(), i), String.valueOf(shardStocks[i]));
+            queues[i] = SeckillStock.streamKey(SECKILL_ORDER_QUEUE, i);
+        }
+        // 登记分片的订单消息队列，订单消费者定时读取登记的队列
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_QUEUES_KEY, queues);
+        stockMap.put(SECKILL_SHARDS_KEY + voucher.getId(), String.valueOf(stockShards));
+        stringRedisTemplate.opsForValue().multiSet(stockMap);
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public Result addSeckillStock(Long voucherId, Integer stock) {
+        if (stock == null || stock <= 0) {
+            return Result.fail("补充库存必须大于0！");
+        }
+        // 1.增加数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + stock)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在！");
+        }
+        // 2.增加 Redis 库存，分片的优惠券均分到各个分片
+        int shards = seckillStock.shardCount(voucherId);
+        if (shards == 0) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, stock);
+        }
+        int[] shardStocks = splitStock(stock, shards);
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForValue().increment(SeckillStock.stockKey(voucherId, i), shardStocks[i]);
+        }
+        // 3.库存全部加完之后递增补货代数，通知所有节点清除这一代之前的售罄标记
+        Long generation = stringRedisTemplate.opsForValue().increment(SECKILL_RESTOCK_GEN_KEY + voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId + ":" + generation);
+        return Result.ok();
+    }
+
+    private long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private int[] splitStock(int stock, int shards) {
+        int[] shardStocks = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            shardStocks[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return shardStocks;
     }
 }
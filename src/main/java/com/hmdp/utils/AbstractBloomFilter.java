@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 根据预计数量和误判率计算位数组大小和哈希次数，用两个哈希值组合出 k 个位置
+ */
+public abstract class AbstractBloomFilter implements IBloomFilter {
+
+    protected final long bitSize;
+    protected final int hashCount;
+    private final AtomicLong count = new AtomicLong();
+    private volatile boolean ready;
+
+    protected AbstractBloomFilter(long expectedInsertions, double fpp) {
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long bits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按64位对齐
+        this.bitSize = Math.max(64, (bits + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    protected abstract void setBits(long[] offsets);
+
+    protected abstract boolean allBitsSet(long[] offsets);
+
+    @Override
+    public void add(long id) {
+        setBits(offsets(id));
+        count.incrementAndGet();
+    }
+
+    @Override
+    public void addAll(Collection<Long> ids) {
+        long[] offsets = new long[ids.size() * hashCount];
+        int i = 0;
+        for (Long id : ids) {
+            long[] o = offsets(id);
+            System.arraycopy(o, 0, offsets, i, hashCount);
+            i += hashCount;
+        }
+        setBits(offsets);
+        count.addAndGet(ids.size());
+    }
+
+    @Override
+    public boolean mightContain(long id) {
+        return !ready || allBitsSet(offsets(id));
+    }
+
+    @Override
+    public void markReady() {
+        ready = true;
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public long count() {
+        return count.get();
+    }
+
+    @Override
+    public long memoryBytes() {
+        return bitSize / 8;
+    }
+
+    @Override
+    public double falsePositiveRate() {
+        // (1 - e^(-kn/m))^k
+        return Math.pow(1 - Math.exp(-(double) hashCount * count.get() / bitSize), hashCount);
+    }
+
+    private long[] offsets(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] offsets = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+        }
+        return offsets;
+    }
+
+    private static long mix(long z) {
+        // SplitMix64 的混淆函数
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * 验证管理员身份的拦截器，只放行配置的管理员用户
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminIds;
+
+    public AdminInterceptor(Set<Long> adminIds) {
+        this.adminIds = adminIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.未登录由 LoginInterceptor 拦截，这里只判断登录用户是否是管理员
+        UserDTO user = UserHolder.getUser();
+        if (user == null || !adminIds.contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+
+}
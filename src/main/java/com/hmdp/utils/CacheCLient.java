@@ -1,21 +1,54 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import cn.hutool.core.util.RandomUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import javax.sql.rowset.JdbcRowSet;
-import java.time.LocalDateTime;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -26,48 +59,504 @@ public class CacheCLient {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ICacheCodec cacheCodec;
+
+    /**
+     * 本地缓存(L1)最多缓存的key数量
+     */
+    @Value("${hmdp.cache.local.max-size:10000}")
+    private long localMaxSize;
+
+    /**
+     * 本地缓存写入后的有效期(s)，失效广播丢失时最多读到这么久的旧数据
+     */
+    @Value("${hmdp.cache.local.ttl:30}")
+    private long localTtl;
+
+    // 本地缓存中表示空值的占位对象
+    private static final Object NULL_VALUE = new Object();
+
+    // 本地缓存(L1)，缓存的是反序列化后的对象，调用方不能修改返回的对象
+    private Cache<String, Object> localCache;
+
+    // 本节点正在加载的key，同一个key的并发未命中共享一次加载
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 等待其他节点重建缓存的key
+    private final Map<String, CompletableFuture<Void>> rebuildWaiters = new ConcurrentHashMap<>();
+
+    // 等待重建通知的最长时间，超时后重新检查缓存并尝试获取锁
+    private static final long REBUILD_WAIT_MILLIS = 1000;
+
+    private Counter l1Hit;
+    private Counter l1Miss;
+    private Counter l2Hit;
+    private Counter l2Miss;
+    private Counter bloomRejected;
+
+    /**
+     * 缓存重建线程数
+     */
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int rebuildThreads;
+
+    /**
+     * 重建任务队列长度，满了之后直接拒绝，由调用方记录并放弃本次重建
+     */
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int rebuildQueueCapacity;
+
+    // 所有缓存重建共用的线程池
+    private ExecutorService cacheRebuildExecutor;
+
+    /**
+     * 提前刷新的扫描间隔(ms)
+     */
+    @Value("${hmdp.cache.refresh.interval:1000}")
+    private long refreshIntervalMillis;
+
+    /**
+     * 距离逻辑过期不足该时间(ms)的热点key会被提前刷新
+     */
+    @Value("${hmdp.cache.refresh.ahead:5000}")
+    private long refreshAheadMillis;
+
+    /**
+     * 衰减后的访问频率达到该值才算热点key
+     */
+    @Value("${hmdp.cache.refresh.hot-score:2}")
+    private double refreshHotScore;
+
+    // 访问频率低于该值的key不再跟踪
+    private static final double COLD_SCORE = 0.01;
+
+    // 正在跟踪的逻辑过期key
+    private final Map<String, RefreshEntry> refreshEntries = new ConcurrentHashMap<>();
+
+    // 提前刷新的扫描线程，每个实例一个，随实例销毁而关闭
+    private final ScheduledExecutorService refreshAheadScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private Counter aheadRefreshed;
+    private Counter aheadSkipped;
+    private Counter aheadFailed;
+    private Counter expiredRefreshed;
+    private Counter expiredSkipped;
+    private Counter expiredFailed;
+
+    @PostConstruct
+    private void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(localTtl, TimeUnit.SECONDS)
+                .build();
+        l1Hit = meterRegistry.counter("cache.requests", "level", "l1", "result", "hit");
+        l1Miss = meterRegistry.counter("cache.requests", "level", "l1", "result", "miss");
+        l2Hit = meterRegistry.counter("cache.requests", "level", "l2", "result", "hit");
+        l2Miss = meterRegistry.counter("cache.requests", "level", "l2", "result", "miss");
+        bloomRejected = meterRegistry.counter("cache.bloom.rejected");
+        aheadRefreshed = meterRegistry.counter("cache.refresh", "trigger", "ahead", "result", "done");
+        aheadSkipped = meterRegistry.counter("cache.refresh", "trigger", "ahead", "result", "skipped");
+        aheadFailed = meterRegistry.counter("cache.refresh", "trigger", "ahead", "result", "failed");
+        expiredRefreshed = meterRegistry.counter("cache.refresh", "trigger", "expired", "result", "done");
+        expiredSkipped = meterRegistry.counter("cache.refresh", "trigger", "expired", "result", "skipped");
+        expiredFailed = meterRegistry.counter("cache.refresh", "trigger", "expired", "result", "failed");
+        meterRegistry.gaugeMapSize("cache.refresh.tracked", Tags.empty(), refreshEntries);
+        // 重建线程池的活跃线程数、队列长度、任务耗时等指标
+        cacheRebuildExecutor = ExecutorServiceMetrics.monitor(meterRegistry, new ThreadPoolExecutor(rebuildThreads, rebuildThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(rebuildQueueCapacity)), "cache.rebuild");
+        refreshAheadScheduler.scheduleWithFixedDelay(this::refreshAhead,
+                refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        meterRegistry.gauge("cache.hit.ratio", Tags.of("level", "l1"), this, c -> hitRatio(c.l1Hit, c.l1Miss));
+        meterRegistry.gauge("cache.hit.ratio", Tags.of("level", "l2"), this, c -> hitRatio(c.l2Hit, c.l2Miss));
+        // 任意节点删除缓存时都会广播key(批量删除时以逗号分隔)，收到后删除本地缓存
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                localCache.invalidateAll(Arrays.asList(new String(message.getBody(), StandardCharsets.UTF_8).split(","))),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 缓存重建完成后唤醒本节点等待该key的线程
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> waiter = rebuildWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+        }, new ChannelTopic(CACHE_REBUILT_CHANNEL));
+    }
+
+    private static double hitRatio(Counter hit, Counter miss) {
+        double total = hit.count() + miss.count();
+        return total == 0 ? 0 : hit.count() / total;
+    }
+
+    /**
+     * 删除 Redis 缓存，并通知所有节点删除本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除，一次 DEL 删除 Redis 缓存，一条消息通知所有节点删除本地缓存
+     */
+    public void deleteBatch(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        localCache.invalidateAll(keys);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, String.join(",", keys));
+    }
+
+    /**
+     * 在当前事务提交之后删除缓存，避免提交前被并发的读请求用旧数据重新写入；没有事务时立即删除
+     */
+    public void deleteAfterCommit(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            delete(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                delete(key);
+            }
+        });
+    }
+
+    /**
+     * 只删除本节点的本地缓存
+     */
+    public void invalidateLocal(String key) {
+        localCache.invalidate(key);
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, cacheCodec.encode(value), Expiration.from(time, unit));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        // 设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 写入RediR
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        // 8字节逻辑过期时间戳 + 数据，读取时不需要先解析外层对象
+        byte[] data = cacheCodec.encode(value);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + data.length);
+        buffer.putLong(System.currentTimeMillis() + unit.toMillis(time)).put(data);
+        // 写入Redis
+        setRaw(key, buffer.array(), Expiration.persistent());
+    }
+
+    /**
+     * 批量写入，一次 pipeline 发送
+     */
+    public void setBatch(Map<String, ?> entries, Long time, TimeUnit unit) {
+        setBatch(entries, time, 0L, unit);
+    }
+
+    /**
+     * 批量写入，每个key的过期时间在 [time, time + jitter] 之间随机，避免同一批写入的key同时过期
+     */
+    public void setBatch(Map<String, ?> entries, Long time, Long jitter, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        long jitterMillis = unit.toMillis(jitter);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            entries.forEach((key, value) -> connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8),
+                    cacheCodec.encode(value),
+                    Expiration.milliseconds(millis + (jitterMillis > 0 ? RandomUtil.randomLong(jitterMillis + 1) : 0)),
+                    RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void setRaw(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(key.getBytes(StandardCharsets.UTF_8), value, expiration, RedisStringCommands.SetOption.upsert()));
     }
 
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit){
+        return queryWithPassThrough(keyPrefix, id, type, null, dbFallback, time, unit);
+    }
+
+    /**
+     * @param mayExist 布隆过滤器判断，返回 false 时不再查询 Redis 和数据库，也不写入空值
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Predicate<ID> mayExist, Function<ID,R> dbFallback,Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        // 0.先查本地缓存
+        Object local = localCache.getIfPresent(key);
+        if (local != null) {
+            l1Hit.increment();
+            return local == NULL_VALUE ? null : (R) local;
+        }
+        l1Miss.increment();
+        // 0.1 布隆过滤器判断id一定不存在，直接返回
+        if (mayExist != null && !mayExist.test(id)) {
+            bloomRejected.increment();
+            return null;
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        Object cached = getFromRedis(key, type);
         // 2.判断redis中是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json,type);
+        if (cached != null) {
+            // 3.存在（包括空值），写入本地缓存并返回
+            l2Hit.increment();
+            localCache.put(key, cached);
+            return cached == NULL_VALUE ? null : (R) cached;
+        }
+        l2Miss.increment();
+        // 4.不存在，同一个key的并发请求只有一个去查数据库，其余等待它的结果
+        return (R) singleFlight(key, () -> loadAndCache(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 批量查询：本地缓存未命中的key用一次 MGET 查询 Redis，Redis 也未命中的id用一次 dbFallback 查询数据库，
+     * 再通过 pipeline 一次写回 Redis
+     * @param dbFallback 根据一批id查询数据库，例如 listByIds
+     * @param idGetter 从查询结果中取出id
+     * @return id到结果的映射，按 ids 的顺序排列，不存在的id不包含在内
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> Map<ID,R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>,List<R>> dbFallback,
+                                       Function<R,ID> idGetter, Long time, TimeUnit unit){
+        Map<ID,Object> found = new HashMap<>(ids.size());
+        // 1.先查本地缓存，重复的id只查一次
+        List<ID> redisIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            Object local = localCache.getIfPresent(keyPrefix + id);
+            if (local != null) {
+                l1Hit.increment();
+                found.put(id, local);
+            } else {
+                l1Miss.increment();
+                redisIds.add(id);
+            }
+        }
+        // 2.本地缓存未命中的key，一次 MGET 查询 Redis
+        List<ID> dbIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            byte[][] keys = redisIds.stream().map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.stringCommands().mGet(keys));
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                Object cached = null;
+                if (bytes != null) {
+                    try {
+                        cached = bytes.length == 0 ? NULL_VALUE : cacheCodec.decode(bytes, type);
+                    } catch (RuntimeException e) {
+                        log.warn("缓存解析失败，key：{}", keyPrefix + id, e);
+                    }
+                }
+                if (cached == null) {
+                    l2Miss.increment();
+                    dbIds.add(id);
+                    continue;
+                }
+                l2Hit.increment();
+                localCache.put(keyPrefix + id, cached);
+                found.put(id, cached);
+            }
+        }
+        // 3.Redis 也未命中的id，一次查询数据库
+        if (!dbIds.isEmpty()) {
+            Map<ID,R> loaded = new HashMap<>(dbIds.size());
+            for (R r : dbFallback.apply(dbIds)) {
+                loaded.put(idGetter.apply(r), r);
+            }
+            // 4.pipeline 写回 Redis，数据库中不存在的id写入空值
+            Expiration expiration = Expiration.from(time, unit);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : dbIds) {
+                    R r = loaded.get(id);
+                    byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    if (r == null) {
+                        connection.stringCommands().set(key, new byte[0], nullExpiration, RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.stringCommands().set(key, cacheCodec.encode(r), expiration, RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            for (ID id : dbIds) {
+                Object value = loaded.containsKey(id) ? loaded.get(id) : NULL_VALUE;
+                localCache.put(keyPrefix + id, value);
+                found.put(id, value);
+            }
+        }
+        // 5.按传入的顺序返回，去掉不存在的id
+        Map<ID,R> result = new LinkedHashMap<>(ids.size());
+        for (ID id : ids) {
+            Object value = found.get(id);
+            if (value != null && value != NULL_VALUE) {
+                result.put(id, (R) value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 互斥锁解决缓存击穿问题：本节点内合并并发请求，节点之间通过分布式锁保证只有一个节点查询数据库，
+     * 其他节点订阅重建完成的通知后再读取 Redis，不需要轮询
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        return queryWithMutex(keyPrefix, id, type, null, dbFallback, time, unit);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Predicate<ID> mayExist, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        // 1.先查本地缓存
+        Object local = localCache.getIfPresent(key);
+        if (local != null) {
+            l1Hit.increment();
+            return local == NULL_VALUE ? null : (R) local;
+        }
+        l1Miss.increment();
+        // 1.1 布隆过滤器判断id一定不存在，直接返回
+        if (mayExist != null && !mayExist.test(id)) {
+            bloomRejected.increment();
+            return null;
+        }
+        // 2.再查 Redis
+        Object cached = getFromRedis(key, type);
+        if (cached != null) {
+            l2Hit.increment();
+            localCache.put(key, cached);
+            return cached == NULL_VALUE ? null : (R) cached;
+        }
+        l2Miss.increment();
+        // 3.未命中，本节点只有一个线程参与竞争分布式锁
+        return (R) singleFlight(key, () -> loadWithMutex(key, id, type, dbFallback, time, unit));
+    }
+
+    private <R,ID> Object loadWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        SimpleRedisLock lock = new SimpleRedisLock(key, stringRedisTemplate);
+        while (true) {
+            // 1.获取互斥锁
+            if (lock.tryLock(LOCK_SHOP_TTL)) {
+                try {
+                    // 2.获取锁成功，再次检查缓存，可能其他节点刚刚完成重建
+                    Object cached = getFromRedis(key, type);
+                    if (cached != null) {
+                        localCache.put(key, cached);
+                        return cached;
+                    }
+                    // 3.查询数据库，重建缓存
+                    return loadAndCache(key, id, dbFallback, time, unit);
+                } finally {
+                    // 4.释放锁，通知等待中的节点
+                    lock.unLock();
+                    stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+                }
+            }
+            // 5.获取锁失败，先登记等待，再检查一次缓存，避免错过登记之前发出的通知
+            CompletableFuture<Void> rebuilt = rebuildWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+            Object cached = getFromRedis(key, type);
+            if (cached != null) {
+                localCache.put(key, cached);
+                return cached;
+            }
+            try {
+                rebuilt.get(REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 持有锁的节点可能已经宕机，重新检查缓存并尝试获取锁
+                rebuildWaiters.remove(key, rebuilt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            cached = getFromRedis(key, type);
+            if (cached != null) {
+                localCache.put(key, cached);
+                return cached;
+            }
+        }
+    }
+
+    /**
+     * 读取 Redis 缓存
+     * @return 未命中返回 null，命中空值返回 NULL_VALUE
+     */
+    private <R> Object getFromRedis(String key, Class<R> type) {
+        byte[] bytes = getRaw(key);
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            return NULL_VALUE;
         }
-        // 命中空值
-        if (json != null) {
-            // 返回一个错误信息
+        try {
+            return cacheCodec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            // 切换编码格式后的旧数据无法解析，按未命中处理，重建时会被覆盖
+            log.warn("缓存解析失败，key：{}", key, e);
             return null;
         }
-        // 4.不存在，根据id查询数据库
+    }
+
+    /**
+     * 查询数据库并写入 Redis 和本地缓存
+     * @return 数据库中不存在时返回 NULL_VALUE
+     */
+    private <R,ID> Object loadAndCache(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        // 1.根据id查询数据库
         R r = dbFallback.apply(id);
         if (null == r){
-            // 将空值写入 redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 5.不存在，返回错误
-            return null;
+            // 2.不存在，将空值写入 redis
+            setRaw(key, new byte[0], Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES));
+            localCache.put(key, NULL_VALUE);
+            return NULL_VALUE;
         }
-        // 6.存在，写入redis
+        // 3.存在，写入redis
         this.set(key,r,time,unit);
-        // 7.返回
+        localCache.put(key, r);
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 同一个key同时只执行一次 loader，并发的调用者共享它的结果
+     */
+    private Object singleFlight(String key, Supplier<Object> loader) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            // 已经有线程在加载，等待它的结果
+            try {
+                Object value = existing.join();
+                return value == NULL_VALUE ? null : value;
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            // 上一次加载可能刚刚完成，本地缓存中已经有结果了
+            Object value = localCache.getIfPresent(key);
+            if (value == null) {
+                value = loader.get();
+            }
+            flight.complete(value);
+            return value == NULL_VALUE ? null : value;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
 
     /**
      * 逻辑过期解决缓存击穿问题
@@ -75,50 +564,128 @@ public class CacheCLient {
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time, TimeUnit unit){
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         // 2.判断redis中是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length <= 8) {
             // 3。未命中，直接返回
             return null;
         }
-        // 4.命中，需要先把 json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4.命中，前8字节是逻辑过期时间，其余是数据
+        long expireTime = ByteBuffer.wrap(bytes).getLong();
+        R r;
+        try {
+            r = cacheCodec.decode(Arrays.copyOfRange(bytes, 8, bytes.length), type);
+        } catch (RuntimeException e) {
+            // 4.1 数据损坏或者是切换编码格式前的旧数据，删除后重建，并发的请求只查一次数据库
+            log.warn("缓存解析失败，删除后重建，key：{}", key, e);
+            stringRedisTemplate.delete(key);
+            Object value = singleFlight(key, () -> {
+                R fresh = dbFallback.apply(id);
+                if (fresh == null) {
+                    return NULL_VALUE;
+                }
+                this.setWithLogicalExpire(key, fresh, time, unit);
+                return fresh;
+            });
+            return type.cast(value);
+        }
+        // 记录访问次数，热点key会在过期之前被提前刷新
+        RefreshEntry entry = refreshEntries.computeIfAbsent(key,
+                k -> new RefreshEntry(() -> this.setWithLogicalExpire(key, dbFallback.apply(id), time, unit)));
+        entry.hits.incrementAndGet();
+        entry.expireTime = expireTime;
         // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
+        if (expireTime > System.currentTimeMillis()){
             // 5.1未过期，直接返回店铺信息
             return r;
         }
-        // 6。过期,需要进行缓存重建
+        // 6。过期，开启独立线程，实现缓存重建
+        submitRebuild(key, entry, expiredRefreshed, expiredSkipped, expiredFailed);
+        // 6.4 返回过期的店铺信息
+        return r;
+    }
+
+    /**
+     * 定时扫描逻辑过期的key：访问频率衰减后仍然较高、并且即将过期的key提前刷新，长时间没有访问的key不再跟踪，任其过期
+     */
+    private void refreshAhead() {
+        long deadline = System.currentTimeMillis() + refreshAheadMillis;
+        for (Map.Entry<String, RefreshEntry> e : refreshEntries.entrySet()) {
+            RefreshEntry entry = e.getValue();
+            // 每个周期访问频率减半，再加上本周期的访问次数
+            entry.score = entry.score / 2 + entry.hits.getAndSet(0);
+            if (entry.score < COLD_SCORE) {
+                refreshEntries.remove(e.getKey(), entry);
+                continue;
+            }
+            if (entry.score >= refreshHotScore && entry.expireTime <= deadline) {
+                try {
+                    submitRebuild(e.getKey(), entry, aheadRefreshed, aheadSkipped, aheadFailed);
+                } catch (Exception ex) {
+                    // Redis 暂时不可用，不能让异常终止定时任务
+                    aheadFailed.increment();
+                    log.error("提前刷新缓存失败，key：{}", e.getKey(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取互斥锁后在重建线程池中重建缓存；拿不到锁或者线程池已满时放弃本次重建
+     */
+    private void submitRebuild(String key, RefreshEntry entry, Counter refreshed, Counter skipped, Counter failed) {
         // 6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        String lockKey = "lock:" + key;
         // 6.2 判断是否获取锁成功
-        if (isLock){
-            // 6.3 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        if (!tryLock(lockKey)) {
+            skipped.increment();
+            return;
+        }
+        try {
+            // 6.3 成功，提交到重建线程池
+            cacheRebuildExecutor.execute(() -> {
                 try {
-                    // 重建缓存
-                    // 先查数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写入 Redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-
+                    // 查数据库，写入 Redis
+                    entry.rebuild.run();
+                    entry.expireTime = Long.MAX_VALUE;
+                    refreshed.increment();
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    failed.increment();
+                    log.error("缓存重建失败，key：{}", key, e);
                 } finally {
                     unLock(lockKey);
                 }
-
             });
-
+        } catch (RejectedExecutionException e) {
+            // 线程池队列已满，由后续的读请求或者下一轮扫描再次尝试
+            unLock(lockKey);
+            skipped.increment();
         }
-        // 6.4 否则，返回过期的店铺信息
-        return r;
     }
 
+    @PreDestroy
+    private void destroy() {
+        refreshAheadScheduler.shutdown();
+        cacheRebuildExecutor.shutdown();
+    }
 
+    /**
+     * 逻辑过期key的刷新信息
+     */
+    private static class RefreshEntry {
+        // 查询数据库并写入 Redis
+        private final Runnable rebuild;
+        // 上次扫描之后的访问次数
+        private final AtomicLong hits = new AtomicLong();
+        // 最近一次读到的逻辑过期时间，重建后在下次读取之前不再刷新
+        private volatile long expireTime;
+        // 衰减后的访问频率，只在扫描线程中读写
+        private double score;
+
+        RefreshEntry(Runnable rebuild) {
+            this.rebuild = rebuild;
+        }
+    }
 
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
@@ -0,0 +1,273 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHORS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_FANOUT_PENDING_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_FANS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_FANS_TTL;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+
+/**
+ * 发布笔记：普通作者在后台线程中分页读取粉丝，pipeline 批量写入粉丝的收件箱 feed:{userId}，并裁剪收件箱长度；
+ * 粉丝数达到阈值的大V只写入自己的发件箱 feed:outbox:{authorId}，由粉丝读取时拉取，内存占用与笔记数成正比而不是与笔记数 × 粉丝数成正比，
+ * 粉丝数降到阈值的一半以下时恢复推模式。
+ * 推送任务先记录到 feed:fanout:pending，完成后删除，进程退出时没有完成的任务在下次启动时重新推送，重复推送不影响结果
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+
+    @Resource
+    private IFollowService followService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 推送线程数
+     */
+    @Value("${hmdp.feed.fanout.threads:4}")
+    private int threads;
+
+    /**
+     * 每页读取的粉丝数量，也是每次 pipeline 写入的收件箱数量
+     */
+    @Value("${hmdp.feed.fanout.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 等待推送的任务数量上限，队列满时由发布笔记的线程自己推送
+     */
+    @Value("${hmdp.feed.fanout.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /**
+     * 收件箱最多保留的笔记数量，更早的笔记被裁剪
+     */
+    @Value("${hmdp.feed.inbox-size:1000}")
+    private int inboxSize;
+
+    /**
+     * 粉丝数达到该值的作者改为拉模式，降到该值的一半以下恢复推模式
+     */
+    @Value("${hmdp.feed.big-author-threshold:10000}")
+    private volatile int bigAuthorThreshold;
+
+    private ExecutorService fanoutExecutor;
+
+    private Counter posts;
+    private Counter pulled;
+    private Counter inboxes;
+    private Counter failures;
+    private Timer latency;
+
+    @PostConstruct
+    private void init() {
+        posts = meterRegistry.counter("feed.fanout.posts");
+        pulled = meterRegistry.counter("feed.fanout.pulled");
+        inboxes = meterRegistry.counter("feed.fanout.inboxes");
+        failures = meterRegistry.counter("feed.fanout.failures");
+        latency = meterRegistry.timer("feed.fanout.latency");
+        // 队列有上限，推送积压时由发布笔记的线程执行推送，发布请求变慢但不会丢失推送，也不会占满内存
+        fanoutExecutor = ExecutorServiceMetrics.monitor(meterRegistry, new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueCapacity),
+                new ThreadPoolExecutor.CallerRunsPolicy()), "feed.fanout");
+        // 重新推送上次退出时没有完成的任务
+        Set<String> pending = stringRedisTemplate.opsForSet().members(FEED_FANOUT_PENDING_KEY);
+        if (pending != null && !pending.isEmpty()) {
+            log.info("重新推送未完成的笔记：{}", pending.size());
+            pending.forEach(this::execute);
+        }
+    }
+
+    public int getBigAuthorThreshold() {
+        return bigAuthorThreshold;
+    }
+
+    /**
+     * 运行时调整大V阈值，之后发布的笔记按新的阈值判断
+     */
+    public void setBigAuthorThreshold(int bigAuthorThreshold) {
+        this.bigAuthorThreshold = bigAuthorThreshold;
+    }
+
+    /**
+     * 推送笔记给作者的所有粉丝。在事务中调用时等到事务提交之后才开始推送，保证粉丝读到的笔记已经存在
+     */
+    public void publish(Long authorId, Long blogId, long timestamp) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            submit(authorId, blogId, timestamp);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                submit(authorId, blogId, timestamp);
+            }
+        });
+    }
+
+    private void submit(Long authorId, Long blogId, long timestamp) {
+        // 先记录任务再推送，推送完成之前进程退出也不会丢失
+        String task = authorId + ":" + blogId + ":" + timestamp;
+        stringRedisTemplate.opsForSet().add(FEED_FANOUT_PENDING_KEY, task);
+        execute(task);
+    }
+
+    private void execute(String task) {
+        String[] parts = task.split(":");
+        Long authorId = Long.valueOf(parts[0]);
+        Long blogId = Long.valueOf(parts[1]);
+        long timestamp = Long.parseLong(parts[2]);
+        fanoutExecutor.execute(() -> {
+            try {
+                latency.record(() -> fanout(authorId, blogId, timestamp));
+                stringRedisTemplate.opsForSet().remove(FEED_FANOUT_PENDING_KEY, task);
+                posts.increment();
+            } catch (Exception e) {
+                // 失败的任务保留在 feed:fanout:pending 中，下次启动时重试
+                failures.increment();
+                log.error("推送笔记失败，作者：{}，笔记：{}", authorId, blogId, e);
+            }
+        });
+    }
+
+    private void fanout(Long authorId, Long blogId, long timestamp) {
+        // 1.大V只写入发件箱
+        if (isBigAuthor(authorId)) {
+            String key = FEED_OUTBOX_KEY + authorId;
+            stringRedisTemplate.opsForZSet().add(key, blogId.toString(), timestamp);
+            stringRedisTemplate.opsForZSet().removeRange(key, 0, -inboxSize - 1);
+            pulled.increment();
+            return;
+        }
+        // 2.普通作者推送到每个粉丝的收件箱
+        long total = push(authorId, Collections.singletonMap(blogId.toString(), (double) timestamp));
+        log.debug("推送笔记完成，作者：{}，笔记：{}，粉丝数量：{}", authorId, blogId, total);
+    }
+
+    /**
+     * 把笔记（blogId -> 时间戳）写入作者所有粉丝的收件箱，返回粉丝数量
+     */
+    private long push(Long authorId, Map<String, Double> blogs) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            // 1.按主键分页读取粉丝，只查询需要的列
+            List<Follow> follows = followService.query()
+                    .select("id", "user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + batchSize)
+                    .list();
+            if (follows.isEmpty()) {
+                return total;
+            }
+            lastId = follows.get(follows.size() - 1).getId();
+            // 2.一次 pipeline 写入这一页粉丝的收件箱：ZADD feed:userId timestamp blogId，并只保留最新的 inboxSize 条
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Follow follow : follows) {
+                    byte[] key = (FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8);
+                    blogs.forEach((blogId, timestamp) ->
+                            connection.zSetCommands().zAdd(key, timestamp, blogId.getBytes(StandardCharsets.UTF_8)));
+                    connection.zSetCommands().zRemRange(key, 0, -inboxSize - 1);
+                }
+                return null;
+            });
+            inboxes.increment(follows.size());
+            total += follows.size();
+        }
+    }
+
+    /**
+     * 每次发布都按 Redis 中的粉丝数量重新判断：达到阈值改为拉模式，降到阈值的一半以下恢复推模式，
+     * 中间留出余量，粉丝数在阈值附近波动时不会反复切换
+     */
+    private boolean isBigAuthor(Long authorId) {
+        String member = authorId.toString();
+        long fans = countFans(authorId);
+        boolean big = BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHORS_KEY, member));
+        if (!big && fans >= bigAuthorThreshold) {
+            stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, member);
+            log.info("作者粉丝数量达到{}，改为拉模式：{}", bigAuthorThreshold, authorId);
+            return true;
+        }
+        if (big && fans < bigAuthorThreshold / 2) {
+            demote(authorId);
+            log.info("作者粉丝数量低于{}，恢复推模式：{}", bigAuthorThreshold / 2, authorId);
+            return false;
+        }
+        return big;
+    }
+
+    /**
+     * 恢复推模式：先把发件箱中的笔记推送到粉丝的收件箱，再移出大V集合、删除发件箱，
+     * 否则只在发件箱中的笔记会从粉丝的 feed 中消失。推送和移出之间读取的粉丝会同时读到收件箱和发件箱，按笔记去重
+     */
+    private void demote(Long authorId) {
+        String key = FEED_OUTBOX_KEY + authorId;
+        Set<ZSetOperations.TypedTuple<String>> outbox = stringRedisTemplate.opsForZSet().rangeWithScores(key, 0, -1);
+        if (outbox != null && !outbox.isEmpty()) {
+            Map<String, Double> blogs = new HashMap<>(outbox.size());
+            outbox.forEach(tuple -> blogs.put(tuple.getValue(), tuple.getScore()));
+            push(authorId, blogs);
+        }
+        stringRedisTemplate.opsForSet().remove(FEED_BIG_AUTHORS_KEY, authorId.toString());
+        stringRedisTemplate.delete(key);
+    }
+
+    /**
+     * 粉丝数量由关注/取关时维护在 feed:fans:{authorId} 中；不存在时从数据库加载（走 idx_follow_user 索引），
+     * 计数器定期过期重新加载，修正并发加载时与数据库之间的偏差
+     */
+    private long countFans(Long authorId) {
+        String key = FEED_FANS_KEY + authorId;
+        String fans = stringRedisTemplate.opsForValue().get(key);
+        if (fans != null) {
+            return Long.parseLong(fans);
+        }
+        Integer count = followService.query().eq("follow_user_id", authorId).count();
+        stringRedisTemplate.opsForValue().setIfAbsent(key, count.toString(), FEED_FANS_TTL, TimeUnit.HOURS);
+        return count;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        fanoutExecutor.shutdown();
+    }
+}
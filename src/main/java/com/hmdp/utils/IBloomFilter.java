@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+
+/**
+ * 数据库主键的布隆过滤器，用于在查询 Redis 和数据库之前拦截一定不存在的id
+ */
+public interface IBloomFilter {
+
+    void add(long id);
+
+    void addAll(Collection<Long> ids);
+
+    /**
+     * @return false 表示id一定不存在；true 表示可能存在。初始化完成之前总是返回 true
+     */
+    boolean mightContain(long id);
+
+    /**
+     * 初始化完成，开始拦截
+     */
+    void markReady();
+
+    boolean isReady();
+
+    /**
+     * 已经加入的id数量
+     */
+    long count();
+
+    /**
+     * 位数组占用的内存(字节)
+     */
+    long memoryBytes();
+
+    /**
+     * 按当前加入的id数量估算的误判率
+     */
+    double falsePositiveRate();
+
+}
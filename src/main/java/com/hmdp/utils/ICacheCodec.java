@@ -0,0 +1,12 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存对象与 Redis 中字节之间的编解码
+ */
+public interface ICacheCodec {
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Hutool JSON，与原来写入 Redis 的格式相同
+ */
+public class JsonCacheCodec implements ICacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        if (type.isArray()) {
+            // 数组先按元素类型解析为 List 再转换
+            List<?> list = JSONUtil.toList(JSONUtil.parseArray(json), type.getComponentType());
+            return (T) list.toArray((Object[]) Array.newInstance(type.getComponentType(), list.size()));
+        }
+        return JSONUtil.toBean(json, type);
+    }
+}
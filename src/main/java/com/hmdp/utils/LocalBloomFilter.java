@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地内存中的布隆过滤器，每个节点各自维护一份
+ */
+public class LocalBloomFilter extends AbstractBloomFilter {
+
+    private final AtomicLongArray words;
+
+    public LocalBloomFilter(long expectedInsertions, double fpp) {
+        super(expectedInsertions, fpp);
+        this.words = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    @Override
+    protected void setBits(long[] offsets) {
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long word;
+            while (((word = words.get(index)) & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                // CAS 失败说明其他线程修改了同一个字，重试
+            }
+        }
+    }
+
+    @Override
+    protected boolean allBitsSet(long[] offsets) {
+        for (long offset : offsets) {
+            if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.util.Arrays;
+
+/**
+ * 在其他编解码器外面包一层 LZ4 压缩，只压缩超过阈值的数据。
+ * 格式：1字节标记(0 未压缩，1 已压缩) + [4字节原始长度] + 数据
+ */
+public class Lz4CacheCodec implements ICacheCodec {
+
+    private static final byte RAW = 0;
+    private static final byte LZ4 = 1;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    // 默认的解压后最大长度
+    private static final int DEFAULT_MAX_DECOMPRESSED_SIZE = 16 * 1024 * 1024;
+
+    private final ICacheCodec delegate;
+    private final int threshold;
+    // 长度头超过该值说明数据已损坏，不能按长度头分配内存
+    private final int maxDecompressedSize;
+
+    public Lz4CacheCodec(ICacheCodec delegate, int threshold) {
+        this(delegate, threshold, DEFAULT_MAX_DECOMPRESSED_SIZE);
+    }
+
+    public Lz4CacheCodec(ICacheCodec delegate, int threshold, int maxDecompressedSize) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] raw = delegate.encode(value);
+        if (raw.length >= threshold) {
+            byte[] out = new byte[5 + COMPRESSOR.maxCompressedLength(raw.length)];
+            int len = COMPRESSOR.compress(raw, 0, raw.length, out, 5);
+            // 压缩后没有变小就保存原始数据
+            if (len + 4 < raw.length) {
+                out[0] = LZ4;
+                out[1] = (byte) (raw.length >>> 24);
+                out[2] = (byte) (raw.length >>> 16);
+                out[3] = (byte) (raw.length >>> 8);
+                out[4] = (byte) raw.length;
+                return Arrays.copyOf(out, 5 + len);
+            }
+        }
+        byte[] result = new byte[raw.length + 1];
+        result[0] = RAW;
+        System.arraycopy(raw, 0, result, 1, raw.length);
+        return result;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes[0] == RAW) {
+            byte[] raw = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, raw, 0, raw.length);
+            return delegate.decode(raw, type);
+        }
+        if (bytes[0] != LZ4) {
+            throw new IllegalStateException("未知的缓存压缩标记：" + bytes[0]);
+        }
+        if (bytes.length < 5) {
+            throw new IllegalStateException("缓存压缩数据不完整，长度：" + bytes.length);
+        }
+        int length = (bytes[1] & 0xFF) << 24 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 8 | (bytes[4] & 0xFF);
+        if (length < 0 || length > maxDecompressedSize) {
+            throw new IllegalStateException("缓存解压后的长度超出限制：" + length);
+        }
+        byte[] raw = new byte[length];
+        DECOMPRESSOR.decompress(bytes, 5, raw, 0, length);
+        return delegate.decode(raw, type);
+    }
+}
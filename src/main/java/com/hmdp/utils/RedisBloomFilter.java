@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+
+/**
+ * 基于 Redis bitmap 的布隆过滤器，所有节点共享一份，位操作通过 pipeline 一次发送
+ */
+public class RedisBloomFilter extends AbstractBloomFilter {
+
+    private final String key;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisBloomFilter(String key, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        super(expectedInsertions, fpp);
+        if (bitSize > 1L << 32) {
+            throw new IllegalArgumentException("Redis bitmap 最多 2^32 位");
+        }
+        this.key = key;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    protected void setBits(long[] offsets) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(key, offset, true);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    protected boolean allBitsSet(long[] offsets) {
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.getBit(key, offset);
+            }
+            return null;
+        });
+        for (Object bit : bits) {
+            if (!Boolean.TRUE.equals(bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
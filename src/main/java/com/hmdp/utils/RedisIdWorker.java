@@ -1,13 +1,35 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -19,21 +41,339 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 每次 INCR 获取一个序列号
+     */
+    public static final String MODE_INCR = "incr";
+    /**
+     * 每次 INCRBY 预留一段序列号，在本地分配
+     */
+    public static final String MODE_SEGMENT = "segment";
+    /**
+     * 时间戳 + 机器id + 序列号，完全在本地生成，机器id从 Redis 租用
+     */
+    public static final String MODE_SNOWFLAKE = "snowflake";
+
+    /**
+     * 低32位的最高位区分生成方式：INCR/号段模式为0，本地生成模式为1，两种模式混用或切换时也不会重复。
+     * INCR/号段模式每天的序列号因此不能超过 2^31 - 1
+     */
+    private static final long LOCAL_MODE_BIT = 1L << 31;
+    private static final long MAX_COUNT = LOCAL_MODE_BIT - 1;
+    /**
+     * 本地生成模式下剩余31位的划分：9位机器id + 22位序列号
+     */
+    private static final int SEQUENCE_BITS = 22;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_WORKER_ID = 511;
+    /**
+     * 允许的最大时钟回拨秒数，回拨期间沿用上一次的时间戳继续分配
+     */
+    private static final long MAX_BACKWARD_SECONDS = 5;
+    private static final String WORKER_KEY_PREFIX = "id:worker:";
+    private static final long WORKER_LEASE_TTL = 30;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Value("${hmdp.id.mode:incr}")
+    private volatile String mode;
+
+    /**
+     * 号段模式下每次预留的序列号数量
+     */
+    @Value("${hmdp.id.segment-step:1000}")
+    private int segmentStep;
+
+    // 号段缓冲区，每个业务前缀一个
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    // 号段预取线程
+    private final ExecutorService segmentPrefetchExecutor = Executors.newSingleThreadExecutor();
+
+    // 本地生成模式：租用的机器id、租约标识与本地有效期、上一次的 (秒 << 22 | 序列号)
+    private volatile long workerId = -1;
+    private final String leaseToken = UUID.randomUUID().toString(true);
+    private volatile long leaseDeadline;
+    private final AtomicLong lastState = new AtomicLong();
+    private ScheduledFuture<?> heartbeat;
+
+    // 租约续期线程
+    private final ScheduledExecutorService workerHeartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public RedisIdWorker() {
+    }
+
+    /**
+     * 不经过 Spring 创建，例如在一个进程中模拟多个节点，创建后调用 {@link #init()}，用完调用 {@link #destroy()}
+     */
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, String mode, int segmentStep) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.mode = mode;
+        this.segmentStep = segmentStep;
+    }
+
+    /**
+     * 本地生成模式在启动时租用机器id，租用失败时启动失败，而不是在第一个请求中失败
+     */
+    @PostConstruct
+    public void init() {
+        if (MODE_SNOWFLAKE.equals(mode)) {
+            leaseWorkerId();
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * 在 INCR 和号段模式之间切换，两种模式的id不会重复。本地生成模式需要在启动时租用机器id，不能切换
+     */
+    public void setMode(String mode) {
+        if (!MODE_INCR.equals(mode) && !MODE_SEGMENT.equals(mode)) {
+            throw new IllegalArgumentException("只能切换为 incr 或 segment 模式：" + mode);
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * 本地生成模式租用的机器id，没有租用时为 -1
+     */
+    public long getWorkerId() {
+        return workerId;
+    }
+
     public long nextId(String keyPrefix){
+        if (MODE_SNOWFLAKE.equals(mode)) {
+            return nextLocalId();
+        }
         // 1. 生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIMESTSMP;
         // 2. 生成序列号
-        // 2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2 自增长
-        Long count = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + date);
+        long count;
+        if (MODE_SEGMENT.equals(mode)) {
+            // 2.1 号段模式，从本地号段中分配
+            count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextSeq(nowSecond / SECONDS_PER_DAY);
+        } else {
+            // 2.1 获取当前日期，精确到天
+            String date = now.format(DATE_FORMATTER);
+            // 2.2 自增长
+            count = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + date);
+        }
+        if (count > MAX_COUNT) {
+            throw new IllegalStateException("当天的序列号已用完，keyPrefix：" + keyPrefix);
+        }
         // 3. 拼接返回
         return timeStamp << COUNT_BITS | count;
     }
 
+    /**
+     * 本地生成：秒级时间戳 << 32 | 1 << 31 | 机器id << 22 | 序列号，不需要任何网络IO。
+     * 时间戳取自 System.currentTimeMillis()，与时区无关
+     */
+    private long nextLocalId() {
+        long worker = workerId;
+        if (worker < 0 || System.currentTimeMillis() > leaseDeadline) {
+            // 没有租约或者租约可能已被其他节点接管，重新租用机器id
+            worker = leaseWorkerId();
+        }
+        while (true) {
+            long last = lastState.get();
+            long lastSecond = last >>> SEQUENCE_BITS;
+            long nowSecond = System.currentTimeMillis() / 1000;
+            long next;
+            if (nowSecond > lastSecond) {
+                // 新的一秒，序列号从0开始
+                next = nowSecond << SEQUENCE_BITS;
+            } else {
+                // 同一秒内，或者发生了时钟回拨：沿用上一次的秒数，保证单调递增
+                if (lastSecond - nowSecond > MAX_BACKWARD_SECONDS) {
+                    throw new IllegalStateException("时钟回拨超过" + MAX_BACKWARD_SECONDS + "秒，拒绝生成id");
+                }
+                // 序列号用完则借用下一秒
+                next = (last & SEQUENCE_MASK) == SEQUENCE_MASK ? (lastSecond + 1) << SEQUENCE_BITS : last + 1;
+            }
+            if (lastState.compareAndSet(last, next)) {
+                long timeStamp = (next >>> SEQUENCE_BITS) - BEGIN_TIMESTSMP;
+                return timeStamp << COUNT_BITS | LOCAL_MODE_BIT | worker << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    private synchronized long leaseWorkerId() {
+        if (workerId >= 0 && System.currentTimeMillis() <= leaseDeadline) {
+            return workerId;
+        }
+        workerId = -1;
+        // 从随机位置开始尝试，减少多个节点同时启动时的冲突 SET id:worker:n token NX EX 30
+        int start = RandomUtil.randomInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) % (MAX_WORKER_ID + 1);
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY_PREFIX + id, leaseToken, WORKER_LEASE_TTL, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                leaseDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(WORKER_LEASE_TTL);
+                workerId = id;
+                if (heartbeat == null) {
+                    // 每 1/3 个租期续期一次
+                    heartbeat = workerHeartbeatExecutor.scheduleWithFixedDelay(this::renewLease,
+                            WORKER_LEASE_TTL / 3, WORKER_LEASE_TTL / 3, TimeUnit.SECONDS);
+                }
+                log.info("租用机器id成功：{}", id);
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有可用的机器id");
+    }
+
+    private void renewLease() {
+        long id = workerId;
+        if (id < 0) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(WORKER_KEY_PREFIX + id),
+                    leaseToken, String.valueOf(WORKER_LEASE_TTL));
+            if (result != null && result == 1) {
+                leaseDeadline = begin + TimeUnit.SECONDS.toMillis(WORKER_LEASE_TTL);
+            } else {
+                // 租约已经丢失，下次生成id时重新租用
+                log.warn("机器id租约已丢失：{}", id);
+                leaseDeadline = 0;
+            }
+        } catch (Exception e) {
+            // Redis 暂时不可用，租约在本地有效期内仍可继续使用
+            log.error("机器id续期失败：{}", id, e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        segmentPrefetchExecutor.shutdownNow();
+        workerHeartbeatExecutor.shutdownNow();
+        releaseLease();
+    }
+
+    private void releaseLease() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        long id = workerId;
+        if (id >= 0) {
+            // 只删除属于自己的租约
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(WORKER_KEY_PREFIX + id), leaseToken);
+        }
+    }
+
+    /**
+     * 一段预留的序列号 [cursor, max]，prefetchAt 为使用到 80% 时的序列号
+     */
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        Segment(long day, long min, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = min + (max - min + 1) * 8 / 10;
+        }
+    }
+
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long nextSeq(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment == null || segment.day != day) {
+                    // 第一次使用或者跨天，重新获取号段
+                    switchDay(day);
+                    continue;
+                }
+                long seq = segment.cursor.getAndIncrement();
+                if (seq == segment.prefetchAt) {
+                    // 使用到 80%，只有一个线程会命中，异步预取下一段
+                    try {
+                        next = CompletableFuture.supplyAsync(() -> fetch(day), segmentPrefetchExecutor);
+                    } catch (RejectedExecutionException e) {
+                        // 正在关闭，号段用完时同步获取
+                        log.debug("号段预取线程已关闭");
+                    }
+                }
+                if (seq <= segment.max) {
+                    return seq;
+                }
+                // 当前号段用完，切换到下一段
+                switchSegment(segment);
+            }
+        }
+
+        private synchronized void switchDay(long day) {
+            if (current != null && current.day == day) {
+                return;
+            }
+            current = fetch(day);
+            next = null;
+        }
+
+        private synchronized void switchSegment(Segment used) {
+            if (current != used) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> future = next;
+            if (future != null) {
+                try {
+                    segment = future.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败，同步获取", e);
+                }
+            }
+            if (segment == null || segment.day != used.day) {
+                segment = fetch(used.day);
+            }
+            next = null;
+            current = segment;
+        }
+
+        private Segment fetch(long day) {
+            // INCRBY incr:keyPrefix:yyyy:MM:dd step，与 INCR 模式共用同一个 key，两种模式混用也不会重复
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long max = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + date, segmentStep);
+            return new Segment(day, max - segmentStep + 1, max);
+        }
+    }
+
 }
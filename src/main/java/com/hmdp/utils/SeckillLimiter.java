@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀入口的令牌桶限流：先按本节点的速率限流，开启全局限流后再从 Redis 批量领取全局令牌
+ */
+@Slf4j
+@Component
+public class SeckillLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 本节点每个优惠券每秒放行的请求数，0 表示不限流
+     */
+    @Value("${hmdp.seckill.limit.rate:0}")
+    private long rate;
+
+    /**
+     * 本地令牌桶容量，允许的突发请求数
+     */
+    @Value("${hmdp.seckill.limit.burst:0}")
+    private long burst;
+
+    /**
+     * 所有节点合计每个优惠券每秒放行的请求数，0 表示不开启全局限流
+     */
+    @Value("${hmdp.seckill.limit.global-rate:0}")
+    private long globalRate;
+
+    /**
+     * 每次从 Redis 领取的全局令牌数
+     */
+    @Value("${hmdp.seckill.limit.global-batch:50}")
+    private long globalBatch;
+
+    // 每个优惠券一个本地令牌桶，数量有上限，长时间没有请求的优惠券被移除
+    private final Cache<Long, TokenBucket> buckets = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    private Counter acceptedCounter;
+    private Counter rejectedCounter;
+
+    public SeckillLimiter() {
+    }
+
+    /**
+     * 不经过 Spring 创建，例如连接一个单独的 Redis，创建后调用 {@link #init()}
+     */
+    public SeckillLimiter(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                          long rate, long burst, long globalRate, long globalBatch) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.rate = rate;
+        this.burst = burst;
+        this.globalRate = globalRate;
+        this.globalBatch = globalBatch;
+    }
+
+    @PostConstruct
+    public void init() {
+        acceptedCounter = meterRegistry.counter("seckill.admission", "result", "accepted");
+        rejectedCounter = meterRegistry.counter("seckill.admission", "result", "rejected");
+    }
+
+    /**
+     * 尝试放行一个秒杀请求
+     * @param voucherId 优惠券id
+     * @return true：放行，false：限流
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (rate <= 0 && globalRate <= 0) {
+            return true;
+        }
+        boolean accepted = buckets.get(voucherId, TokenBucket::new).tryAcquire();
+        (accepted ? acceptedCounter : rejectedCounter).increment();
+        return accepted;
+    }
+
+    private class TokenBucket {
+        private final Long voucherId;
+        // 本地令牌
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+        // 已经从 Redis 领取、还未使用的全局令牌
+        private long globalTokens;
+        // 正在进行的全局令牌领取，同一时刻只有一个线程访问 Redis，其他线程等待它的结果
+        private CompletableFuture<Void> fetching;
+
+        TokenBucket(Long voucherId) {
+            this.voucherId = voucherId;
+            this.tokens = Math.max(burst, rate);
+        }
+
+        boolean tryAcquire() {
+            CompletableFuture<Void> fetch;
+            boolean owner = false;
+            synchronized (this) {
+                // 1.本地限流
+                if (!refill()) {
+                    return false;
+                }
+                // 2.全局限流，本地领取的令牌用完后才访问 Redis
+                if (globalRate <= 0 || globalTokens > 0) {
+                    take();
+                    return true;
+                }
+                if (fetching == null) {
+                    fetching = new CompletableFuture<>();
+                    owner = true;
+                }
+                fetch = fetching;
+            }
+            // 3.在锁外访问 Redis，等待期间其他请求仍然可以使用本地令牌
+            if (owner) {
+                long granted = 0;
+                try {
+                    granted = acquireGlobal();
+                } finally {
+                    synchronized (this) {
+                        globalTokens += granted;
+                        fetching = null;
+                    }
+                    fetch.complete(null);
+                }
+            } else {
+                fetch.join();
+            }
+            synchronized (this) {
+                if (!refill() || globalTokens <= 0) {
+                    return false;
+                }
+                take();
+                return true;
+            }
+        }
+
+        /**
+         * 补充本地令牌
+         * @return 是否还有本地令牌
+         */
+        private boolean refill() {
+            if (rate <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            double capacity = Math.max(burst, rate);
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * rate / (double) TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+            return tokens >= 1;
+        }
+
+        private void take() {
+            if (rate > 0) {
+                tokens -= 1;
+            }
+            if (globalRate > 0) {
+                globalTokens--;
+            }
+        }
+
+        private long acquireGlobal() {
+            try {
+                Long granted = stringRedisTemplate.execute(
+                        LIMIT_SCRIPT,
+                        Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                        String.valueOf(globalRate),
+                        String.valueOf(Math.max(globalRate, globalBatch)),
+                        String.valueOf(System.currentTimeMillis()),
+                        String.valueOf(globalBatch)
+                );
+                return granted == null ? 0 : granted;
+            } catch (Exception e) {
+                // Redis 不可用时放弃全局限流，只依赖本地限流（未开启时不限流），同样按批放行，避免每个请求都去访问 Redis；
+                // 不能全部拒绝，秒杀脚本同样依赖 Redis，会给出真正的结果
+                log.error("获取全局令牌失败，voucherId：{}", voucherId, e);
+                return globalBatch;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀的本地售罄标记 优惠券id -> 售罄时的补货代数，已售罄的优惠券直接拒绝，不再访问 Redis。
+ * 补货广播可能丢失（节点重连、启动较晚），标记过期后放行一个请求到 Redis 重新确认，仍然售罄时再次标记
+ */
+public class SeckillSoldOutFlags {
+
+    private final Map<Long, Long> soldOutVouchers;
+
+    // 本节点收到的最新补货代数，早于这一代的售罄消息已经过期
+    private final Map<Long, Long> restockGenerations = new ConcurrentHashMap<>();
+
+    public SeckillSoldOutFlags(long ttl, TimeUnit unit) {
+        soldOutVouchers = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(ttl, unit)
+                .<Long, Long>build()
+                .asMap();
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.containsKey(voucherId);
+    }
+
+    /**
+     * 本节点收到的最新补货代数，没有收到过补货时为0
+     */
+    public long generation(Long voucherId) {
+        return restockGenerations.getOrDefault(voucherId, 0L);
+    }
+
+    /**
+     * 标记售罄。售罄结果早于已经收到的补货时丢弃，避免补货之后又被过期的售罄消息标记为售罄
+     * @param generation 执行脚本前的补货代数
+     * @return 是否是第一次标记
+     */
+    public boolean markSoldOut(Long voucherId, long generation) {
+        boolean[] added = new boolean[1];
+        // 与 onRestock 在同一个 key 上互斥，检查代数和写入标记之间不会插入补货
+        soldOutVouchers.compute(voucherId, (id, old) -> {
+            if (generation < generation(id)) {
+                return old;
+            }
+            added[0] = old == null;
+            return old == null ? generation : Math.max(old, generation);
+        });
+        return added[0];
+    }
+
+    /**
+     * 收到补货：记录最新的补货代数，清除这一代之前的售罄标记
+     */
+    public void onRestock(Long voucherId, long generation) {
+        restockGenerations.merge(voucherId, generation, Math::max);
+        soldOutVouchers.computeIfPresent(voucherId, (id, old) -> old < generation ? null : old);
+    }
+}
@@ -0,0 +1,221 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 秒杀库存分片：库存、订单、时间窗口和订单消息队列按分片拆开，第 n 个分片的 key 使用相同的 hash tag {shard:n}，
+ * 每个请求按用户id只路由到一个分片，脚本访问的 key 全部通过 KEYS 传入，部署到 Redis Cluster 时分片分散到不同的 slot。
+ * 本分片库存不足时，再从其他分片借一部分库存过来重试，一轮借库存发现所有分片都没有库存才算售罄。
+ * 没有分片数量的优惠券（未开启分片、或升级前创建的优惠券）使用原来不带 hash tag 的 key 和 stream.orders
+ */
+@Slf4j
+@Component
+public class SeckillStock {
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    // 借到库存后最多重试的次数，借来的库存可能被同分片的其他请求抢走
+    private static final int MAX_BORROW_TIMES = 3;
+
+    // 扣减结果：库存不足
+    public static final int SOLD_OUT = 1;
+    // 扣减结果：借到的库存都被抢走，其他分片还有库存，稍后重试
+    public static final int BUSY = 5;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    // 优惠券的分片数量，创建后不会改变，0 表示未分片；不存在的优惠券不缓存
+    private final Cache<Long, Integer> shardCounts = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    public static String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + tag(shard) + ":" + voucherId;
+    }
+
+    /**
+     * 分片的订单消息队列，所有优惠券的第 n 个分片共用一个队列，队列数量等于最大的分片数量
+     */
+    public static String streamKey(String queueName, int shard) {
+        return queueName + ":" + tag(shard);
+    }
+
+    private static String tag(int shard) {
+        return "{shard:" + shard + "}";
+    }
+
+    /**
+     * 扣减库存并发送订单消息
+     * @param queueName 订单消息队列，分片的优惠券发送到分片自己的队列
+     * @return 0：成功，1：库存不足，2：重复下单，3：秒杀尚未开始，4：秒杀已经结束，5：其他分片还有库存，稍后重试
+     */
+    public int deduct(Long voucherId, Long userId, long orderId, String queueName) {
+        int shards = shardCount(voucherId);
+        int home = shards == 0 ? 0 : (int) (userId % shards);
+        List<String> keys = keys(voucherId, shards, home, queueName);
+        List<String> args = Arrays.asList(voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        for (int i = 0; ; i++) {
+            // 1.执行lua脚本，只访问用户所在的分片
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, args.toArray());
+            int r = result == null ? SOLD_OUT : result.intValue();
+            if (r != SOLD_OUT || shards <= 1) {
+                return r;
+            }
+            // 2.本分片库存不足，从其他分片借库存后重试；所有分片都没有库存才是售罄
+            if (borrow(voucherId, shards, home) <= 0 && !hasStock(voucherId, home)) {
+                return SOLD_OUT;
+            }
+            if (i >= MAX_BORROW_TIMES) {
+                return BUSY;
+            }
+        }
+    }
+
+    /**
+     * 非阻塞版：通过 Lettuce 的响应式 API 执行脚本和借库存
+     */
+    public Mono<Integer> deductAsync(Long voucherId, Long userId, long orderId, String queueName) {
+        int shards = shardCount(voucherId);
+        int home = shards == 0 ? 0 : (int) (userId % shards);
+        List<String> keys = keys(voucherId, shards, home, queueName);
+        List<String> args = Arrays.asList(voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        return deductAsync(voucherId, shards, home, keys, args, 0);
+    }
+
+    private Mono<Integer> deductAsync(Long voucherId, int shards, int home, List<String> keys, List<String> args, int times) {
+        return reactiveStringRedisTemplate.execute(SECKILL_SCRIPT, keys, args).next()
+                .map(Long::intValue)
+                .flatMap(r -> {
+                    if (r != SOLD_OUT || shards <= 1) {
+                        return Mono.just(r);
+                    }
+                    return borrowAsync(voucherId, shards, home)
+                            .flatMap(count -> count > 0 ? Mono.just(true) : hasStockAsync(voucherId, home))
+                            .flatMap(retry -> {
+                                if (!retry) {
+                                    return Mono.just(SOLD_OUT);
+                                }
+                                return times >= MAX_BORROW_TIMES ? Mono.just(BUSY)
+                                        : deductAsync(voucherId, shards, home, keys, args, times + 1);
+                            });
+                });
+    }
+
+    /**
+     * 从其他分片借库存到用户所在的分片
+     * 借出和存入是两次操作，中途宕机只会少卖、不会超卖，补充库存即可恢复
+     * @return 借到的库存数量，0 表示所有分片都没有库存
+     */
+    private long borrow(Long voucherId, int shards, int home) {
+        for (int i = 1; i < shards; i++) {
+            Long count = stringRedisTemplate.execute(BORROW_SCRIPT,
+                    Collections.singletonList(stockKey(voucherId, (home + i) % shards)));
+            if (count != null && count > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, home), count);
+                log.debug("优惠券{}的分片{}库存不足，借到库存{}", voucherId, home, count);
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 其他请求可能刚把库存借到用户所在的分片，借不到库存时再确认一次本分片
+     */
+    private boolean hasStock(Long voucherId, int home) {
+        String stock = stringRedisTemplate.opsForValue().get(stockKey(voucherId, home));
+        return stock != null && Long.parseLong(stock) > 0;
+    }
+
+    private Mono<Boolean> hasStockAsync(Long voucherId, int home) {
+        return reactiveStringRedisTemplate.opsForValue().get(stockKey(voucherId, home))
+                .map(stock -> Long.parseLong(stock) > 0)
+                .defaultIfEmpty(false);
+    }
+
+    private Mono<Long> borrowAsync(Long voucherId, int shards, int home) {
+        return Flux.range(1, shards - 1)
+                .concatMap(i -> reactiveStringRedisTemplate.execute(BORROW_SCRIPT,
+                        Collections.singletonList(stockKey(voucherId, (home + i) % shards))).next())
+                .filter(count -> count > 0)
+                .next()
+                .flatMap(count -> reactiveStringRedisTemplate.opsForValue()
+                        .increment(stockKey(voucherId, home), count)
+                        .thenReturn(count))
+                .defaultIfEmpty(0L);
+    }
+
+    /**
+     * 脚本访问的 key：库存、订单、时间窗口，以及订单消息队列。
+     * 分片的 key 和队列带有相同的 hash tag，未分片的优惠券沿用原来的 key，部署到 Redis Cluster 时必须开启分片
+     */
+    private List<String> keys(Long voucherId, int shards, int shard, String queueName) {
+        if (shards == 0) {
+            return Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                    SECKILL_WINDOW_KEY + voucherId, queueName);
+        }
+        return Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard), windowKey(voucherId, shard),
+                streamKey(queueName, shard));
+    }
+
+    /**
+     * 优惠券的分片数量，0 表示未分片。
+     * 分片数量和未分片的库存 key 都不存在时说明优惠券还没有创建，不缓存，避免创建之后仍按未分片处理
+     */
+    public int shardCount(Long voucherId) {
+        Integer shards = shardCounts.getIfPresent(voucherId);
+        if (shards != null) {
+            return shards;
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(
+                Arrays.asList(SECKILL_SHARDS_KEY + voucherId, SECKILL_STOCK_KEY + voucherId));
+        if (values == null || values.get(0) == null && values.get(1) == null) {
+            return 0;
+        }
+        shards = values.get(0) == null ? 0 : Integer.parseInt(values.get(0));
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+}
@@ -74,7 +74,8 @@ CREATE TABLE `tb_follow`  (
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
   `follow_user_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的用户id',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_follow_user`(`follow_user_id`, `id`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -274,11 +275,48 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uniq_user_voucher`(`user_id`, `voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `table_name` varchar(32) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '发生变更的表',
+  `row_id` bigint(20) UNSIGNED NOT NULL COMMENT '发生变更的行主键',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+-- ----------------------------
+-- Triggers for tb_cache_outbox
+-- 与业务写入在同一个事务中记录变更，提交之后才对缓存失效任务可见，绕过 Service 的写入同样会被记录
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_insert_outbox`;
+CREATE TRIGGER `trg_shop_insert_outbox` AFTER INSERT ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_shop', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_update_outbox`;
+CREATE TRIGGER `trg_shop_update_outbox` AFTER UPDATE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_shop', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_delete_outbox`;
+CREATE TRIGGER `trg_shop_delete_outbox` AFTER DELETE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_shop', OLD.`id`);
+DROP TRIGGER IF EXISTS `trg_user_insert_outbox`;
+CREATE TRIGGER `trg_user_insert_outbox` AFTER INSERT ON `tb_user` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_user', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_user_update_outbox`;
+CREATE TRIGGER `trg_user_update_outbox` AFTER UPDATE ON `tb_user` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_user', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_user_delete_outbox`;
+CREATE TRIGGER `trg_user_delete_outbox` AFTER DELETE ON `tb_user` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_user', OLD.`id`);
+DROP TRIGGER IF EXISTS `trg_blog_insert_outbox`;
+CREATE TRIGGER `trg_blog_insert_outbox` AFTER INSERT ON `tb_blog` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_blog', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_blog_update_outbox`;
+-- 只修改点赞数的 UPDATE（点赞数增量写回）不删除缓存，读取笔记时点赞数以 Redis 为准
+CREATE TRIGGER `trg_blog_update_outbox` AFTER UPDATE ON `tb_blog` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) SELECT 'tb_blog', NEW.`id` FROM DUAL WHERE NEW.`liked` <=> OLD.`liked` OR NOT (NEW.`shop_id` <=> OLD.`shop_id` AND NEW.`user_id` <=> OLD.`user_id` AND NEW.`title` <=> OLD.`title` AND NEW.`images` <=> OLD.`images` AND NEW.`content` <=> OLD.`content` AND NEW.`comments` <=> OLD.`comments` AND NEW.`create_time` <=> OLD.`create_time`);
+DROP TRIGGER IF EXISTS `trg_blog_delete_outbox`;
+CREATE TRIGGER `trg_blog_delete_outbox` AFTER DELETE ON `tb_blog` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`) VALUES ('tb_blog', OLD.`id`);
+
 SET FOREIGN_KEY_CHECKS = 1;
@@ -0,0 +1,5 @@
+-- 粉丝数量计数器存在时才增减；不存在时由读取方从数据库加载，避免从 0 开始计数
+if (redis.call('exists', KEYS[1]) == 1) then
+    return redis.call('incrby', KEYS[1], ARGV[1])
+end
+return nil
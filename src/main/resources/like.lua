@@ -0,0 +1,23 @@
+-- 点赞/取消点赞，点赞用户集合、待写回数据库的点赞数增量和热门排行在一个脚本中修改
+-- KEYS[1] 点赞用户集合 blog:liked:{blogId}
+-- KEYS[2] 点赞数增量 blog:like-delta，field 为 blogId
+-- KEYS[3] 热门排行 blog:hot，member 为 blogId
+-- ARGV[1] 用户id，ARGV[2] blogId，ARGV[3] 点赞时间
+
+-- 1.已经点赞，取消点赞，返回0
+if (redis.call('zscore', KEYS[1], ARGV[1])) then
+    redis.call('zrem', KEYS[1], ARGV[1])
+    redis.call('hincrby', KEYS[2], ARGV[2], -1)
+    -- 排行中不存在的笔记(排行尚未加载)不加入，避免丢失发布时间的加权
+    if (redis.call('zscore', KEYS[3], ARGV[2])) then
+        redis.call('zincrby', KEYS[3], -1, ARGV[2])
+    end
+    return 0
+end
+-- 2.未点赞，点赞，返回1
+redis.call('zadd', KEYS[1], ARGV[3], ARGV[1])
+redis.call('hincrby', KEYS[2], ARGV[2], 1)
+if (redis.call('zscore', KEYS[3], ARGV[2])) then
+    redis.call('zincrby', KEYS[3], 1, ARGV[2])
+end
+return 1
@@ -1,3 +1,6 @@
+-- 脚本中使用了 TIME，按写命令复制，兼容 Redis 5 以下版本
+redis.replicate_commands()
+
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1]
@@ -6,27 +9,46 @@ local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
 
--- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.数据key，只访问用户所在的一个分片，分片的 key 和消息队列使用相同的 hash tag {shard:n}
+-- 未分片的优惠券使用 seckill:stock:voucherId 等原来的 key 和 stream.orders
+-- 2.1.库存key seckill:stock:{shard:n}:voucherId
+local stockKey = KEYS[1]
+-- 2.2.订单key seckill:order:{shard:n}:voucherId
+local orderKey = KEYS[2]
+-- 2.3.秒杀时间窗口key seckill:window:{shard:n}:voucherId，保存开始、结束时间的毫秒数
+local windowKey = KEYS[3]
+-- 2.4.订单消息队列key stream.orders:{shard:n}
+local streamKey = KEYS[4]
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 3.0.判断是否在秒杀时间内，以 Redis 服务器时间为准
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        -- 秒杀尚未开始，返回3
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
+-- 3.1.判断用户是否下单 SISMEMBER orderKey userId，用户固定路由到同一个分片，保证一人一单
 if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+    -- 存在，说明是重复下单，返回2
     return 2
 end
--- 3.4.扣库存 incrby stockKey -1
+-- 3.2.判断库存是否充足 get stockKey
+if(tonumber(redis.call('get', stockKey) or 0) <= 0) then
+    -- 本分片库存不足，返回1，由调用方从其他分片借库存后重试
+    return 1
+end
+-- 3.3.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
+-- 3.4.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 3.5.发送消息到队列中， XADD streamKey * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,9 @@
+-- 从一个分片借出库存：借出剩余库存的一半（至少1个），返回借出的数量
+-- KEYS[1] 被借出的库存分片 seckill:stock:{voucherId:n}
+local stock = tonumber(redis.call('get', KEYS[1]) or 0)
+if (stock <= 0) then
+    return 0
+end
+local count = math.ceil(stock / 2)
+redis.call('incrby', KEYS[1], -count)
+return count
@@ -0,0 +1,22 @@
+-- 1.参数列表
+-- 1.1.令牌桶key
+local key = KEYS[1]
+-- 1.2.每秒生成的令牌数、桶容量、当前毫秒数、申请的令牌数
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local requested = tonumber(ARGV[4])
+
+-- 2.按时间补充令牌
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+
+-- 3.发放令牌，不足时有多少发多少
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+redis.call('hset', key, 'tokens', tokens, 'ts', now)
+-- 4.桶满之后就不需要保存了
+redis.call('pexpire', key, math.ceil(capacity * 1000 / rate) + 1000)
+return granted
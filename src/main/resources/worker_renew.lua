@@ -0,0 +1,5 @@
+-- 只有租约仍属于当前节点时才续期
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
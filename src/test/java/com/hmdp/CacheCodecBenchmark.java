@@ -0,0 +1,108 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.ICacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.Lz4CacheCodec;
+import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SmileCacheCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码对比：编码/解码耗时，以及 Setup 中打印的编码后字节数。
+ * logicalExpireJson 是原来逻辑过期的读取方式：先解析 RedisData，再把 data 转换为 Shop
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "smile", "smile-lz4"})
+    private String codecName;
+
+    private ICacheCodec codec;
+    private Shop shop;
+    private byte[] encoded;
+    private String logicalExpireJson;
+
+    @Setup
+    public void setup() {
+        switch (codecName) {
+            case "smile":
+                codec = new SmileCacheCodec();
+                break;
+            case "smile-lz4":
+                codec = new Lz4CacheCodec(new SmileCacheCodec(), 256);
+                break;
+            default:
+                codec = new JsonCacheCodec();
+        }
+        shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        StringBuilder images = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            images.append(i == 0 ? "" : ",").append("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        }
+        shop.setImages(images.toString());
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.now());
+        shop.setUpdateTime(LocalDateTime.now());
+        encoded = codec.encode(shop);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now());
+        logicalExpireJson = JSONUtil.toJsonStr(redisData);
+        System.out.println(codecName + " bytes = " + encoded.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decode() {
+        return codec.decode(encoded, Shop.class);
+    }
+
+    @Benchmark
+    public Shop logicalExpireJson() {
+        RedisData redisData = JSONUtil.toBean(logicalExpireJson, RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
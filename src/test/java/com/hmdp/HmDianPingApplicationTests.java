@@ -1,26 +1,106 @@
 package com.hmdp;
 
+import cn.hutool.core.lang.UUID;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.User;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.CacheCLient;
+import com.hmdp.utils.FeedFanout;
+import com.hmdp.utils.IBloomFilter;
+import com.hmdp.utils.LocalBloomFilter;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillLimiter;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.UserHolder;
+import io.lettuce.core.cluster.SlotHash;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
 
 import javax.annotation.Resource;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.BLOG_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHORS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_FANS_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -34,25 +114,114 @@ class HmDianPingApplicationTests {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private IFollowService followService;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private CacheCLient cacheCLient;
+
+    @Resource
+    private IBloomFilter userBloomFilter;
+
+    @Autowired
+    private FeedFanout feedFanout;
+
+    @Autowired
+    private SeckillStock seckillStock;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
     void testIdWorker() throws InterruptedException {
-        CountDownLatch latch = new CountDownLatch(300);
+        // 500个线程下对比 INCR 模式与号段模式的吞吐量，结束后恢复配置的模式
+        String configured = redRedisIdWorker.getMode();
+        try {
+            for (String mode : new String[]{RedisIdWorker.MODE_INCR, RedisIdWorker.MODE_SEGMENT}) {
+                redRedisIdWorker.setMode(mode);
+                runIdWorker(mode);
+            }
+        } finally {
+            redRedisIdWorker.setMode(configured);
+        }
+    }
+
+    private void runIdWorker(String mode) throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(500);
         Runnable task = () -> {
             for (int i = 0; i < 100; i++) {
-                long id = redRedisIdWorker.nextId("order");
-                System.out.println("id = " + id);
+                ids.add(redRedisIdWorker.nextId("order"));
             }
             latch.countDown();
         };
         long begin = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
+        for (int i = 0; i < 500; i++) {
             es.submit(task);
         }
         latch.await();
         long end = System.currentTimeMillis();
-        System.out.println("time = " + (end - begin));
+        System.out.println("mode = " + mode + ", time = " + (end - begin) + ", ids/s = " + 50000 * 1000L / Math.max(1, end - begin));
+        Assertions.assertEquals(50000, ids.size());
+    }
+
+    @Test
+    void testSnowflakeIdWorker() throws InterruptedException {
+        // 模拟4个节点，每个节点各自租用机器id，本地生成
+        int nodes = 4;
+        List<RedisIdWorker> workers = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate, RedisIdWorker.MODE_SNOWFLAKE, 1000);
+            // 启动时租用机器id
+            worker.init();
+            Assertions.assertTrue(worker.getWorkerId() >= 0);
+            workers.add(worker);
+        }
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(500);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 500; i++) {
+            RedisIdWorker worker = workers.get(i % nodes);
+            es.submit(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    ids.add(worker.nextId("order"));
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("nodes = " + nodes + ", time = " + (end - begin) + ", ids/s = " + 500000 * 1000L / Math.max(1, end - begin));
+        // 跨节点也不能重复，并且与 INCR/号段模式的id通过低32位的最高位区分
+        Assertions.assertEquals(500000, ids.size());
+        Assertions.assertTrue(ids.stream().allMatch(id -> (id & (1L << 31)) != 0));
+        Assertions.assertEquals(0, redRedisIdWorker.nextId("order") & (1L << 31));
+        for (RedisIdWorker worker : workers) {
+            worker.destroy();
+        }
     }
 
     @Test
@@ -90,7 +259,891 @@ class HmDianPingApplicationTests {
         }
     }
 
+    @Test
+    void testOrderBatchThroughput() {
+        int total = 4096;
+        for (int batchSize : new int[]{1, 16, 64, 256}) {
+            // 1.准备一张库存充足的秒杀券
+            long voucherId = saveBenchVoucher(total);
+            // 2.按批次落库
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < total; i++) {
+                VoucherOrder order = new VoucherOrder();
+                order.setId(redRedisIdWorker.nextId("order"));
+                order.setUserId((long) i);
+                order.setVoucherId(voucherId);
+                batch.add(order);
+                if (batch.size() == batchSize) {
+                    voucherOrderService.createVoucherOrders(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            long end = System.currentTimeMillis();
+            System.out.println("batchSize = " + batchSize + ", orders/s = " + total * 1000L / Math.max(1, end - begin));
+            // 3.清理数据
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
 
+    @Test
+    void testSeckillShardThroughput() throws InterruptedException {
+        // 压测消息写入单独的队列，不会被订单消费者落库
+        String streamKey = "stream.orders.bench";
+        int requests = 20000;
+        for (int shards : new int[]{1, 2, 4, 8, 16}) {
+            // 1.创建一张库存分片的秒杀券
+            Voucher voucher = new Voucher();
+            voucher.setShopId(1L);
+            voucher.setTitle("shard-bench-" + shards);
+            voucher.setPayValue(100L);
+            voucher.setActualValue(100L);
+            voucher.setType(1);
+            voucher.setStock(requests / 2);
+            voucher.setBeginTime(LocalDateTime.now());
+            voucher.setEndTime(LocalDateTime.now().plusDays(1));
+            voucherService.addSeckillVoucher(voucher, shards);
+            Long voucherId = voucher.getId();
+            try {
+                // 2.每个请求只访问一个分片，同一分片的 key 和消息队列在同一个 slot，不同分片分散到不同的 slot
+                Set<Integer> slots = new HashSet<>();
+                for (int i = 0; i < shards && shards > 1; i++) {
+                    int slot = SlotHash.getSlot(SeckillStock.stockKey(voucherId, i));
+                    Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStock.orderKey(voucherId, i)));
+                    Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStock.windowKey(voucherId, i)));
+                    Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStock.streamKey(streamKey, i)));
+                    slots.add(slot);
+                }
+                // 3.500个线程并发抢购，每个用户只抢一次，分片库存用完后从其他分片借
+                AtomicInteger userId = new AtomicInteger();
+                AtomicInteger admitted = new AtomicInteger();
+                CountDownLatch latch = new CountDownLatch(requests);
+                long begin = System.currentTimeMillis();
+                for (int i = 0; i < requests; i++) {
+                    es.submit(() -> {
+                        try {
+                            long user = userId.incrementAndGet();
+                            int r;
+                            do {
+                                // 借到的库存被同分片的请求抢走时，和客户端一样重试
+                                r = seckillStock.deduct(voucherId, user, redRedisIdWorker.nextId("order"), streamKey);
+                            } while (r == SeckillStock.BUSY);
+                            if (r == 0) {
+                                admitted.incrementAndGet();
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                }
+                latch.await();
+                long end = System.currentTimeMillis();
+                // 单机 Redis 上吞吐量受限于一个线程；部署到集群后，分片所在的 slot 数就是可以分摊压力的节点数上限
+                System.out.println("shards = " + shards + ", slots = " + slots.size() + ", admitted = " + admitted.get()
+                        + ", requests/s = " + requests * 1000L / Math.max(1, end - begin));
+                // 分片后依然不能超卖，借库存后库存必须全部售出
+                Assertions.assertEquals(requests / 2, admitted.get());
+                long messages = 0;
+                for (String queue : seckillQueues(shards, streamKey)) {
+                    messages += stringRedisTemplate.opsForStream().size(queue);
+                }
+                Assertions.assertEquals(requests / 2, messages);
+            } finally {
+                // 4.清理压测数据：消息队列、分片 key、优惠券
+                stringRedisTemplate.delete(seckillKeys(voucherId, shards, streamKey));
+                seckillVoucherService.removeById(voucherId);
+                voucherService.removeById(voucherId);
+            }
+        }
+    }
+
+    @Test
+    void testSeckillWindow() {
+        // 秒杀脚本以 Redis 服务器时间校验时间窗口，每个分片都有一份时间窗口
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime[][] windows = {
+                {now.plusHours(1), now.plusDays(1)},
+                {now.minusDays(1), now.minusHours(1)},
+                {now.minusHours(1), now.plusHours(1)}
+        };
+        int[] expected = {3, 4, 0};
+        String streamKey = "stream.orders.bench";
+        for (int i = 0; i < windows.length; i++) {
+            Voucher voucher = new Voucher();
+            voucher.setShopId(1L);
+            voucher.setTitle("window-test-" + i);
+            voucher.setPayValue(100L);
+            voucher.setActualValue(100L);
+            voucher.setType(1);
+            voucher.setStock(10);
+            voucher.setBeginTime(windows[i][0]);
+            voucher.setEndTime(windows[i][1]);
+            voucherService.addSeckillVoucher(voucher, 2);
+            Long voucherId = voucher.getId();
+            try {
+                for (long userId = 1; userId <= 2; userId++) {
+                    Assertions.assertEquals(expected[i],
+                            seckillStock.deduct(voucherId, userId, redRedisIdWorker.nextId("order"), streamKey));
+                }
+            } finally {
+                stringRedisTemplate.delete(seckillKeys(voucherId, 2, streamKey));
+                seckillVoucherService.removeById(voucherId);
+                voucherService.removeById(voucherId);
+            }
+        }
+    }
+
+    @Test
+    void testSeckillLegacyKeys() {
+        // 升级前创建的优惠券没有分片数量，继续使用原来的库存 key 和一人一单集合
+        long voucherId = redRedisIdWorker.nextId("bench");
+        String streamKey = "stream.orders.bench";
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, "1");
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + voucherId, "1");
+        try {
+            Assertions.assertEquals(0, seckillStock.shardCount(voucherId));
+            Assertions.assertEquals(2, seckillStock.deduct(voucherId, 1L, redRedisIdWorker.nextId("order"), streamKey));
+            Assertions.assertEquals(0, seckillStock.deduct(voucherId, 2L, redRedisIdWorker.nextId("order"), streamKey));
+            Assertions.assertEquals(SeckillStock.SOLD_OUT,
+                    seckillStock.deduct(voucherId, 3L, redRedisIdWorker.nextId("order"), streamKey));
+            Assertions.assertEquals(1, stringRedisTemplate.opsForStream().size(streamKey));
+        } finally {
+            stringRedisTemplate.delete(seckillKeys(voucherId, 1, streamKey));
+        }
+    }
+
+    @Test
+    void testSeckillLimiterRedisDown() throws InterruptedException {
+        // 只开启全局限流，Redis 不可用时放弃全局限流，不能拒绝所有请求
+        LettuceConnectionFactory factory = new LettuceConnectionFactory("127.0.0.1", 1);
+        factory.afterPropertiesSet();
+        SeckillLimiter limiter = new SeckillLimiter(new StringRedisTemplate(factory), new SimpleMeterRegistry(),
+                0L, 0L, 1000L, 50L);
+        limiter.init();
+        // 并发请求只由一个线程访问 Redis，其余线程等待结果后使用领取到的令牌
+        int requests = 200;
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            es.submit(() -> {
+                try {
+                    if (limiter.tryAcquire(1L)) {
+                        accepted.incrementAndGet();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        factory.destroy();
+        Assertions.assertEquals(requests, accepted.get());
+    }
+
+    @Test
+    void testSeckillRestockGeneration() throws InterruptedException {
+        SeckillSoldOutFlags flags = new SeckillSoldOutFlags(10, TimeUnit.SECONDS);
+        long voucherId = 1L;
+        // 1.补货到第1代之后，才到达的第0代售罄结果被丢弃
+        flags.onRestock(voucherId, 1L);
+        Assertions.assertFalse(flags.markSoldOut(voucherId, 0L));
+        Assertions.assertFalse(flags.isSoldOut(voucherId));
+        // 2.第1代补货的库存卖完，标记售罄
+        Assertions.assertTrue(flags.markSoldOut(voucherId, 1L));
+        Assertions.assertTrue(flags.isSoldOut(voucherId));
+        // 3.第2代补货清除售罄标记，重复到达的第1代补货消息不影响结果
+        flags.onRestock(voucherId, 2L);
+        Assertions.assertFalse(flags.isSoldOut(voucherId));
+        flags.markSoldOut(voucherId, 2L);
+        flags.onRestock(voucherId, 1L);
+        Assertions.assertTrue(flags.isSoldOut(voucherId));
+        // 4.补货广播丢失时，售罄标记过期后重新放行
+        SeckillSoldOutFlags expiring = new SeckillSoldOutFlags(100, TimeUnit.MILLISECONDS);
+        expiring.markSoldOut(voucherId, 0L);
+        Assertions.assertTrue(expiring.isSoldOut(voucherId));
+        Thread.sleep(200);
+        Assertions.assertFalse(expiring.isSoldOut(voucherId));
+    }
+
+    @Test
+    void testPendingOrderReclaim() throws Exception {
+        // 在独立的消息队列上模拟宕机的消费者：消息读取后不ACK，由回收任务认领
+        String streamKey = "stream.orders.reclaim-test";
+        String deadLetterKey = streamKey + ".dlq";
+        Object target = AopTestUtils.getTargetObject(voucherOrderService);
+        Object minIdle = ReflectionTestUtils.getField(target, "reclaimMinIdleMs");
+        Object maxDeliveries = ReflectionTestUtils.getField(target, "maxDeliveries");
+        long voucherId = saveBenchVoucher(10);
+        long orderId = redRedisIdWorker.nextId("order");
+        try {
+            // 1.两条订单消息，宕机的消费者 c-dead 各读取一次
+            RecordId first = addOrderRecord(streamKey, 1L, voucherId, orderId);
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), "g1");
+            Consumer dead = Consumer.from("g1", "c-dead");
+            stringRedisTemplate.opsForStream().read(dead, StreamReadOptions.empty().count(1),
+                    StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+            RecordId second = addOrderRecord(streamKey, 2L, voucherId, redRedisIdWorker.nextId("order"));
+            stringRedisTemplate.opsForStream().read(dead, StreamReadOptions.empty().count(1),
+                    StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+            // 2.第二条消息再从 PendingList 读取一次，投递次数变为2
+            stringRedisTemplate.opsForStream().read(dead, StreamReadOptions.empty().count(1),
+                    StreamOffset.create(streamKey, ReadOffset.from(first)));
+            // 3.最多投递2次，回收时认领还会 +1：第一条重新落库，第二条转入死信队列
+            ReflectionTestUtils.setField(target, "reclaimMinIdleMs", 0L);
+            ReflectionTestUtils.setField(target, "maxDeliveries", 2L);
+            Class<?> reclaimerClass = Class.forName(VoucherOrderServiceImpl.class.getName() + "$PendingOrderReclaimer");
+            Constructor<?> constructor = reclaimerClass.getDeclaredConstructor(
+                    VoucherOrderServiceImpl.class, String.class, String.class, String.class);
+            constructor.setAccessible(true);
+            ((Runnable) constructor.newInstance(target, streamKey, deadLetterKey, "c-test-reclaimer")).run();
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, "g1");
+            Assertions.assertEquals(0, summary.getTotalPendingMessages());
+            Assertions.assertNotNull(voucherOrderService.getById(orderId));
+            Assertions.assertEquals(1, voucherOrderService.query().eq("voucher_id", voucherId).count());
+            List<MapRecord<String, Object, Object>> deadLetters = stringRedisTemplate.opsForStream().range(
+                    deadLetterKey, Range.unbounded());
+            Assertions.assertEquals(1, deadLetters.size());
+            Assertions.assertEquals(second.getValue(), deadLetters.get(0).getValue().get("sourceId"));
+            Assertions.assertEquals("3", deadLetters.get(0).getValue().get("deliveries"));
+        } finally {
+            ReflectionTestUtils.setField(target, "reclaimMinIdleMs", minIdle);
+            ReflectionTestUtils.setField(target, "maxDeliveries", maxDeliveries);
+            stringRedisTemplate.delete(Arrays.asList(streamKey, deadLetterKey));
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    private RecordId addOrderRecord(String streamKey, long userId, long voucherId, long orderId) {
+        Map<String, String> value = new HashMap<>();
+        value.put("userId", String.valueOf(userId));
+        value.put("voucherId", String.valueOf(voucherId));
+        value.put("id", String.valueOf(orderId));
+        return stringRedisTemplate.opsForStream().add(streamKey, value);
+    }
+
+    @Test
+    void testOrderPersistThroughput() {
+        int total = 2000;
+        // 对比加 Redisson 锁逐条落库与无锁幂等落库
+        for (boolean withLock : new boolean[]{true, false}) {
+            long voucherId = saveBenchVoucher(total);
+            List<VoucherOrder> orders = new ArrayList<>(total);
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < total; i++) {
+                VoucherOrder order = new VoucherOrder();
+                order.setId(redRedisIdWorker.nextId("order"));
+                order.setUserId((long) i);
+                order.setVoucherId(voucherId);
+                orders.add(order);
+                if (withLock) {
+                    RLock lock = redissonClient.getLock("lock:order:" + i);
+                    lock.tryLock();
+                    try {
+                        voucherOrderService.createVoucherOrder(order);
+                    } finally {
+                        lock.unlock();
+                    }
+                } else {
+                    voucherOrderService.createVoucherOrder(order);
+                }
+            }
+            long end = System.currentTimeMillis();
+            System.out.println("withLock = " + withLock + ", orders/s = " + total * 1000L / Math.max(1, end - begin));
+            // 重复投递同一批订单，订单数和库存都不应该变化
+            voucherOrderService.createVoucherOrders(orders.subList(0, 100));
+            Assertions.assertEquals(total, voucherOrderService.query().eq("voucher_id", voucherId).count());
+            Assertions.assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    @Test
+    void testShopCacheLatency() {
+        long shopId = 1L;
+        String key = CACHE_SHOP_KEY + shopId;
+        int reads = 100000;
+        // 预热
+        for (int i = 0; i < 1000; i++) {
+            cacheCLient.queryWithPassThrough(CACHE_SHOP_KEY, shopId, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        // 1.每次读取前删除本地缓存，读取走 Redis + JSON 反序列化
+        long begin = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            cacheCLient.invalidateLocal(key);
+            cacheCLient.queryWithPassThrough(CACHE_SHOP_KEY, shopId, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        long l2 = System.nanoTime() - begin;
+        // 2.命中本地缓存
+        begin = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            cacheCLient.queryWithPassThrough(CACHE_SHOP_KEY, shopId, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        long l1 = System.nanoTime() - begin;
+        System.out.println("l2 avg = " + l2 / reads + "ns, l1 avg = " + l1 / reads + "ns");
+        // 3.更新店铺后本地缓存失效，读到的是新数据
+        Shop shop = shopService.getById(shopId);
+        String name = shop.getName();
+        shop.setName(name + "-bench");
+        shopService.update(shop);
+        Assertions.assertEquals(name + "-bench", cacheCLient.queryWithPassThrough(CACHE_SHOP_KEY, shopId, Shop.class,
+                shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES).getName());
+        shop.setName(name);
+        shopService.update(shop);
+    }
 
+    @Test
+    void testCacheStampede() throws InterruptedException {
+        int requests = 1000;
+        for (boolean mutex : new boolean[]{false, true}) {
+            // 1.一个不存在于缓存中的key，数据库查询耗时50ms
+            String keyPrefix = "cache:stampede:" + mutex + ":";
+            long id = redRedisIdWorker.nextId("stampede");
+            AtomicInteger loads = new AtomicInteger();
+            Function<Long, Shop> dbFallback = shopId -> {
+                loads.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                Shop shop = new Shop();
+                shop.setId(shopId);
+                shop.setName("stampede");
+                return shop;
+            };
+            // 2.1000个并发请求同时未命中
+            AtomicInteger wrong = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch latch = new CountDownLatch(requests);
+            for (int i = 0; i < requests; i++) {
+                es.submit(() -> {
+                    try {
+                        start.await();
+                        Shop shop = mutex
+                                ? cacheCLient.queryWithMutex(keyPrefix, id, Shop.class, dbFallback, CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                                : cacheCLient.queryWithPassThrough(keyPrefix, id, Shop.class, dbFallback, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                        if (shop == null || shop.getId() != id) {
+                            wrong.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        wrong.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            latch.await();
+            System.out.println("mutex = " + mutex + ", db loads = " + loads.get());
+            // 3.所有请求都拿到结果，并且只查询了一次数据库
+            Assertions.assertEquals(0, wrong.get());
+            Assertions.assertEquals(1, loads.get());
+            cacheCLient.delete(keyPrefix + id);
+        }
+    }
+
+    @Test
+    void testBloomFilter() {
+        int n = 100000;
+        String key = "bloom:test";
+        for (IBloomFilter filter : new IBloomFilter[]{new LocalBloomFilter(n, 0.01),
+                new RedisBloomFilter(key, n, 0.01, stringRedisTemplate)}) {
+            List<Long> ids = new ArrayList<>(1000);
+            for (long id = 1; id <= n; id++) {
+                ids.add(id);
+                if (ids.size() == 1000) {
+                    filter.addAll(ids);
+                    ids.clear();
+                }
+            }
+            filter.markReady();
+            // 已加入的id不能漏判，未加入的id误判率接近预期
+            int falsePositives = 0;
+            for (long id = 1; id <= 10000; id++) {
+                Assertions.assertTrue(filter.mightContain(id));
+                if (filter.mightContain(n + id)) {
+                    falsePositives++;
+                }
+            }
+            System.out.println(filter.getClass().getSimpleName() + " memory = " + filter.memoryBytes() + "B, estimated fpp = "
+                    + filter.falsePositiveRate() + ", measured fpp = " + falsePositives / 10000.0);
+            Assertions.assertTrue(falsePositives / 10000.0 < 0.02);
+        }
+        stringRedisTemplate.delete(key);
+    }
+
+    @Test
+    void testBloomFilterOutbox() throws InterruptedException {
+        // 绕过 Service 直接插入用户，触发器记录的事件由中继加入布隆过滤器并广播
+        User user = new User();
+        user.setPhone("19900000000");
+        user.setNickName("bloom-test");
+        userService.getBaseMapper().insert(user);
+        try {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!userBloomFilter.mightContain(user.getId()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assertions.assertTrue(userBloomFilter.mightContain(user.getId()));
+            Assertions.assertNotNull(userService.queryUserDTO(user.getId()));
+        } finally {
+            userService.removeById(user.getId());
+        }
+    }
+
+    @Test
+    void testSetBatchTtlJitter() {
+        // 同一批写入的key过期时间分散在 [30, 40] 分钟之间
+        Shop shop = shopService.getById(1L);
+        Map<String, Shop> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("cache:jitter:" + i, shop);
+        }
+        cacheCLient.setBatch(entries, 30L, 10L, TimeUnit.MINUTES);
+        Set<Long> ttls = new HashSet<>();
+        for (String key : entries.keySet()) {
+            Long ttl = stringRedisTemplate.getExpire(key, TimeUnit.SECONDS);
+            Assertions.assertTrue(ttl > 29 * 60 && ttl <= 40 * 60);
+            ttls.add(ttl);
+        }
+        Assertions.assertTrue(ttls.size() > 10);
+        stringRedisTemplate.delete(entries.keySet());
+    }
+
+    @Test
+    void testShopTypeEtag() throws Exception {
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        // 1.第一次请求返回列表和 ETag，带上 If-None-Match 再次请求返回 304，不带响应体
+        String etag = mockMvc.perform(get("/shop-type/list"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        Assertions.assertNotNull(etag);
+        mockMvc.perform(get("/shop-type/list").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        // 2.新增、删除店铺类型都会更新快照，旧的 ETag 失效
+        ShopType type = new ShopType();
+        type.setName("etag-test");
+        type.setIcon("");
+        type.setSort(Integer.MAX_VALUE);
+        shopTypeService.save(type);
+        String added = mockMvc.perform(get("/shop-type/list").header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        Assertions.assertNotEquals(etag, added);
+        shopTypeService.removeById(type.getId());
+        mockMvc.perform(get("/shop-type/list").header("If-None-Match", added))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", etag));
+    }
+
+    @Test
+    void testSeckillRestockRequiresAdmin() throws Exception {
+        // 未配置管理员时，未登录返回 401，普通登录用户返回 403，库存不会增加
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        long voucherId = saveBenchVoucher(10);
+        String token = UUID.randomUUID().toString(true);
+        Map<String, String> user = new HashMap<>();
+        user.put("id", "1");
+        user.put("nickName", "restock-test");
+        user.put("icon", "");
+        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, user);
+        try {
+            String url = "/voucher/seckill/" + voucherId + "/stock/10";
+            mockMvc.perform(put(url)).andExpect(status().isUnauthorized());
+            mockMvc.perform(put(url).header("authorization", token)).andExpect(status().isForbidden());
+            Assertions.assertEquals(10, seckillVoucherService.getById(voucherId).getStock());
+        } finally {
+            stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    @Test
+    void testRefreshAhead() throws InterruptedException {
+        // 热点key每10ms读一次，冷key只读一次，两个key都是10秒后逻辑过期
+        AtomicInteger hotLoads = new AtomicInteger();
+        AtomicInteger coldLoads = new AtomicInteger();
+        Shop shop = shopService.getById(1L);
+        cacheCLient.setWithLogicalExpire("cache:hot:1", shop, 10L, TimeUnit.SECONDS);
+        cacheCLient.setWithLogicalExpire("cache:cold:1", shop, 10L, TimeUnit.SECONDS);
+        cacheCLient.queryWithLogicalExpire("cache:cold:", 1L, Shop.class, id -> {
+            coldLoads.incrementAndGet();
+            return shopService.getById(id);
+        }, 10L, TimeUnit.SECONDS);
+        long end = System.currentTimeMillis() + 8000;
+        while (System.currentTimeMillis() < end) {
+            Assertions.assertNotNull(cacheCLient.queryWithLogicalExpire("cache:hot:", 1L, Shop.class, id -> {
+                hotLoads.incrementAndGet();
+                return shopService.getById(id);
+            }, 10L, TimeUnit.SECONDS));
+            Thread.sleep(10);
+        }
+        System.out.println("hot loads = " + hotLoads.get() + ", cold loads = " + coldLoads.get());
+        // 热点key在过期前被提前刷新，冷key不会
+        Assertions.assertTrue(hotLoads.get() >= 1);
+        Assertions.assertEquals(0, coldLoads.get());
+        stringRedisTemplate.delete(Arrays.asList("cache:hot:1", "cache:cold:1"));
+    }
+
+    @Test
+    void testLogicalExpireCorrupted() {
+        // 逻辑过期时间 + LZ4 标记 + 约2GB的长度头，解码时不能按长度头分配内存
+        String key = "cache:corrupted:1";
+        byte[] corrupted = ByteBuffer.allocate(13)
+                .putLong(System.currentTimeMillis() + 60000)
+                .put((byte) 1).putInt(Integer.MAX_VALUE)
+                .array();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(key.getBytes(StandardCharsets.UTF_8), corrupted));
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            loads.incrementAndGet();
+            return shopService.getById(id);
+        };
+        // 损坏的缓存被删除并重建，之后的读取不再查询数据库
+        Assertions.assertNotNull(cacheCLient.queryWithLogicalExpire("cache:corrupted:", 1L, Shop.class, dbFallback, 10L, TimeUnit.SECONDS));
+        Assertions.assertNotNull(cacheCLient.queryWithLogicalExpire("cache:corrupted:", 1L, Shop.class, dbFallback, 10L, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, loads.get());
+        stringRedisTemplate.delete(key);
+    }
+
+    @Test
+    void testQueryHotBlogRoundTrips() {
+        // 原来每篇笔记调用一次 userService.getById，一页就是 MAX_PAGE_SIZE 次数据库查询
+        List<Blog> blogs = (List<Blog>) blogService.queryHotBlog(1).getData();
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        userIds.forEach(id -> cacheCLient.delete(CACHE_USER_KEY + id));
+        // 缓存未命中：1次 MGET + 1次 listByIds + 1次 pipeline 写回
+        long cold = redisCommands();
+        blogService.queryHotBlog(1);
+        cold = redisCommands() - cold - 1;
+        // 笔记在本地缓存中，用户本地缓存已失效、Redis 命中：1次 ZREVRANGE + 1次 MGET
+        userIds.forEach(id -> cacheCLient.invalidateLocal(CACHE_USER_KEY + id));
+        long warm = redisCommands();
+        blogService.queryHotBlog(1);
+        warm = redisCommands() - warm - 1;
+        System.out.println("blogs = " + blogs.size() + ", db queries before = " + blogs.size()
+                + ", redis commands cold = " + cold + ", redis commands warm = " + warm);
+        Assertions.assertEquals(blogs.isEmpty() ? 0 : 2, warm);
+    }
+
+    @Test
+    void testUserSummaryCache() {
+        User user = userService.getById(1L);
+        String nickName = user.getNickName();
+        Assertions.assertEquals(nickName, userService.queryUserDTO(1L).getNickName());
+        // 修改昵称后缓存被删除，再次查询读到新昵称
+        user.setNickName(nickName + "-test");
+        userService.updateById(user);
+        Assertions.assertEquals(nickName + "-test", userService.queryUserDTO(1L).getNickName());
+        user.setNickName(nickName);
+        userService.updateById(user);
+    }
+
+    @Test
+    void testCacheOutbox() throws InterruptedException {
+        Shop shop = shopService.getById(1L);
+        String name = shop.getName();
+        Assertions.assertNotNull(shopService.queryById(1L).getData());
+        Assertions.assertTrue(stringRedisTemplate.hasKey(CACHE_SHOP_KEY + 1L));
+        // 绕过 Service 直接更新数据库，连续更新多次，由触发器记录变更
+        for (int i = 0; i < 10; i++) {
+            shopService.update().set("name", name + "-" + i).eq("id", 1L).update();
+        }
+        // 等待失效中继删除缓存
+        long deadline = System.currentTimeMillis() + 2000;
+        while (stringRedisTemplate.hasKey(CACHE_SHOP_KEY + 1L) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertFalse(stringRedisTemplate.hasKey(CACHE_SHOP_KEY + 1L));
+        Assertions.assertEquals(name + "-9", ((Shop) shopService.queryById(1L).getData()).getName());
+        shopService.update().set("name", name).eq("id", 1L).update();
+    }
+
+    @Test
+    void testBlogOfFollow() {
+        // 收件箱中所有笔记使用同一个时间戳，翻页只能依靠 offset 跳过已读的元素
+        UserDTO user = new UserDTO();
+        user.setId(999999L);
+        UserHolder.saveUser(user);
+        String key = FEED_KEY + user.getId();
+        stringRedisTemplate.delete(key);
+        List<Long> ids = blogService.list().stream().map(Blog::getId).collect(Collectors.toList());
+        ids.forEach(id -> stringRedisTemplate.opsForZSet().add(key, id.toString(), 1000));
+        try {
+            Set<Long> seen = new HashSet<>();
+            long max = System.currentTimeMillis();
+            int offset = 0;
+            while (true) {
+                ScrollResult page = (ScrollResult) blogService.queryBlogOfFollow(max, offset).getData();
+                if (page.getList() == null || page.getList().isEmpty()) {
+                    break;
+                }
+                page.getList().forEach(blog -> Assertions.assertTrue(seen.add(((Blog) blog).getId())));
+                max = page.getMinTime();
+                offset = page.getOffset();
+            }
+            Assertions.assertEquals(new HashSet<>(ids), seen);
+        } finally {
+            stringRedisTemplate.delete(key);
+            UserHolder.removeUser();
+        }
+    }
+
+    @Test
+    void testFeedFanoutThroughput() throws InterruptedException {
+        // 1.准备一个有 fans 个粉丝的作者
+        long authorId = 888888L;
+        int fans = 50000;
+        List<Follow> follows = new ArrayList<>(fans);
+        for (int i = 0; i < fans; i++) {
+            follows.add(new Follow().setUserId(1000000L + i).setFollowUserId(authorId));
+        }
+        followService.saveBatch(follows, 5000);
+        // 测试推模式的吞吐，不切换为大V
+        int threshold = feedFanout.getBigAuthorThreshold();
+        feedFanout.setBigAuthorThreshold(Integer.MAX_VALUE);
+        UserDTO author = new UserDTO();
+        author.setId(authorId);
+        UserHolder.saveUser(author);
+        Long blogId = null;
+        try {
+            // 2.发布笔记，请求只等待写入 tb_blog
+            Blog blog = new Blog();
+            blog.setShopId(1L);
+            blog.setTitle("fanout-test");
+            blog.setImages("");
+            blog.setContent("fanout-test");
+            long begin = System.currentTimeMillis();
+            blogId = (Long) blogService.saveBlog(blog).getData();
+            long saved = System.currentTimeMillis() - begin;
+            // 3.等待最后一个粉丝的收件箱收到笔记
+            String lastInbox = FEED_KEY + (1000000L + fans - 1);
+            while (stringRedisTemplate.opsForZSet().score(lastInbox, blogId.toString()) == null
+                    && System.currentTimeMillis() - begin < 60000) {
+                Thread.sleep(10);
+            }
+            long fanout = System.currentTimeMillis() - begin;
+            System.out.println("fans = " + fans + ", save latency = " + saved + "ms, fanout = " + fanout
+                    + "ms, inboxes/s = " + fans * 1000L / Math.max(1, fanout));
+            Assertions.assertNotNull(stringRedisTemplate.opsForZSet().score(lastInbox, blogId.toString()));
+        } finally {
+            feedFanout.setBigAuthorThreshold(threshold);
+            UserHolder.removeUser();
+            followService.remove(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+            if (blogId != null) {
+                blogService.removeById(blogId);
+            }
+            List<String> keys = new ArrayList<>(fans);
+            for (int i = 0; i < fans; i++) {
+                keys.add(FEED_KEY + (1000000L + i));
+            }
+            keys.add(FEED_FANS_KEY + authorId);
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    @Test
+    void testHybridFeed() throws InterruptedException {
+        // 1.读者关注一个大V(阈值调为1)，收件箱中已有普通作者推送的笔记
+        long readerId = 999998L;
+        long authorId = 888887L;
+        int threshold = feedFanout.getBigAuthorThreshold();
+        feedFanout.setBigAuthorThreshold(1);
+        followService.save(new Follow().setUserId(readerId).setFollowUserId(authorId));
+        stringRedisTemplate.opsForSet().add("follows:" + readerId, String.valueOf(authorId));
+        List<Long> pushed = blogService.list().stream().map(Blog::getId).limit(3).collect(Collectors.toList());
+        pushed.forEach(id -> stringRedisTemplate.opsForZSet().add(FEED_KEY + readerId, id.toString(), id));
+        UserDTO user = new UserDTO();
+        Long blogId = null;
+        try {
+            // 2.大V发布笔记，只写入发件箱
+            user.setId(authorId);
+            UserHolder.saveUser(user);
+            Blog blog = new Blog();
+            blog.setShopId(1L);
+            blog.setTitle("hybrid-test");
+            blog.setImages("");
+            blog.setContent("hybrid-test");
+            blogId = (Long) blogService.saveBlog(blog).getData();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (stringRedisTemplate.opsForZSet().score(FEED_OUTBOX_KEY + authorId, blogId.toString()) == null
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertNull(stringRedisTemplate.opsForZSet().score(FEED_KEY + readerId, blogId.toString()));
+            // 3.读者读取时合并收件箱和发件箱，大V的笔记时间戳最大，排在第一位
+            user.setId(readerId);
+            ScrollResult page = (ScrollResult) blogService.queryBlogOfFollow(System.currentTimeMillis(), 0).getData();
+            List<Long> ids = page.getList().stream().map(b -> ((Blog) b).getId()).collect(Collectors.toList());
+            Assertions.assertEquals(blogId, ids.get(0));
+            Assertions.assertTrue(ids.containsAll(pushed));
+        } finally {
+            feedFanout.setBigAuthorThreshold(threshold);
+            UserHolder.removeUser();
+            followService.remove(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+            if (blogId != null) {
+                blogService.removeById(blogId);
+            }
+            stringRedisTemplate.delete(Arrays.asList("follows:" + readerId, FEED_KEY + readerId,
+                    FEED_OUTBOX_KEY + authorId, FEED_FANS_KEY + authorId));
+            stringRedisTemplate.opsForSet().remove(FEED_BIG_AUTHORS_KEY, String.valueOf(authorId));
+        }
+    }
+
+    @Test
+    void testLikeWriteBehind() throws InterruptedException {
+        Long blogId = blogService.list().get(0).getId();
+        int before = blogService.getById(blogId).getLiked();
+        int users = 1000;
+        // 1.并发点赞，每次点赞只执行一次 Lua 脚本，不更新数据库
+        CountDownLatch latch = new CountDownLatch(users);
+        for (int i = 0; i < users; i++) {
+            long userId = 2000000L + i;
+            es.submit(() -> {
+                UserDTO user = new UserDTO();
+                user.setId(userId);
+                UserHolder.saveUser(user);
+                try {
+                    blogService.likeBlog(blogId);
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        // 读取笔记时不等写回，点赞数直接取自 Redis 的点赞用户集合
+        Long live = stringRedisTemplate.opsForZSet().zCard(BLOG_LIKED_KEY + blogId);
+        Assertions.assertEquals(live.intValue(), ((Blog) blogService.queryBlogById(blogId).getData()).getLiked());
+        // 2.等待写回，增量合并为一次 UPDATE
+        long deadline = System.currentTimeMillis() + 5000;
+        while (blogService.getById(blogId).getLiked() != before + users && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(before + users, blogService.getById(blogId).getLiked());
+        // 3.再次点赞即取消点赞，恢复原来的点赞数
+        for (int i = 0; i < users; i++) {
+            UserDTO user = new UserDTO();
+            user.setId(2000000L + i);
+            UserHolder.saveUser(user);
+            blogService.likeBlog(blogId);
+        }
+        UserHolder.removeUser();
+        deadline = System.currentTimeMillis() + 5000;
+        while (blogService.getById(blogId).getLiked() != before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(before, blogService.getById(blogId).getLiked());
+    }
+
+    @Test
+    void testHotBlogRank() {
+        blogService.rebuildHotRank();
+        List<Blog> page = (List<Blog>) blogService.queryHotBlog(1).getData();
+        Blog last = page.get(page.size() - 1);
+        // 排在最后的笔记获得足够多的点赞后排到第一位，排行由点赞脚本增量更新
+        Double top = stringRedisTemplate.opsForZSet().score(BLOG_HOT_KEY, page.get(0).getId().toString());
+        Double score = stringRedisTemplate.opsForZSet().score(BLOG_HOT_KEY, last.getId().toString());
+        int users = (int) (top - score) + 1;
+        UserDTO user = new UserDTO();
+        try {
+            for (int i = 0; i < users; i++) {
+                user.setId(3000000L + i);
+                UserHolder.saveUser(user);
+                blogService.likeBlog(last.getId());
+            }
+            Assertions.assertEquals(last.getId(), ((List<Blog>) blogService.queryHotBlog(1).getData()).get(0).getId());
+        } finally {
+            // 取消点赞，排行恢复
+            for (int i = 0; i < users; i++) {
+                user.setId(3000000L + i);
+                UserHolder.saveUser(user);
+                blogService.likeBlog(last.getId());
+            }
+            UserHolder.removeUser();
+        }
+        Assertions.assertEquals(score, stringRedisTemplate.opsForZSet().score(BLOG_HOT_KEY, last.getId().toString()));
+    }
+
+    @Test
+    void testHotBlogRankReconcile() {
+        blogService.rebuildHotRank();
+        // 1.排行中丢失的笔记在对账时重建回来
+        Long blogId = blogService.list().get(0).getId();
+        stringRedisTemplate.opsForZSet().remove(BLOG_HOT_KEY, blogId.toString());
+        blogService.reconcileHotRank();
+        Assertions.assertNotNull(stringRedisTemplate.opsForZSet().score(BLOG_HOT_KEY, blogId.toString()));
+        Assertions.assertEquals(blogService.count(), stringRedisTemplate.opsForZSet().zCard(BLOG_HOT_KEY).intValue());
+        // 2.删除的笔记移出排行
+        Blog blog = new Blog();
+        blog.setShopId(1L);
+        blog.setUserId(1L);
+        blog.setTitle("hot-rank-remove");
+        blog.setContent("hot-rank-remove");
+        blog.setImages("");
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+        try {
+            blogService.saveBlog(blog);
+        } finally {
+            UserHolder.removeUser();
+        }
+        Assertions.assertNotNull(stringRedisTemplate.opsForZSet().score(BLOG_HOT_KEY, blog.getId().toString()));
+        blogService.removeById(blog.getId());
+        Assertions.assertNull(stringRedisTemplate.opsForZSet().score(BLOG_HOT_KEY, blog.getId().toString()));
+    }
+
+    private long redisCommands() {
+        Properties stats = stringRedisTemplate.execute((RedisCallback<Properties>) connection -> connection.info("stats"));
+        return Long.parseLong(stats.getProperty("total_commands_processed"));
+    }
+
+    /**
+     * 秒杀券在 Redis 中的所有 key，包括写入的订单消息队列；未分片的优惠券使用不带 hash tag 的 key
+     */
+    private List<String> seckillKeys(Long voucherId, int shards, String streamKey) {
+        List<String> keys = new ArrayList<>(seckillQueues(shards, streamKey));
+        if (shards <= 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+            keys.add(SECKILL_ORDER_KEY + voucherId);
+            keys.add(SECKILL_WINDOW_KEY + voucherId);
+            return keys;
+        }
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillStock.stockKey(voucherId, i));
+            keys.add(SeckillStock.orderKey(voucherId, i));
+            keys.add(SeckillStock.windowKey(voucherId, i));
+        }
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        return keys;
+    }
+
+    private List<String> seckillQueues(int shards, String streamKey) {
+        if (shards <= 1) {
+            return Collections.singletonList(streamKey);
+        }
+        List<String> queues = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            queues.add(SeckillStock.streamKey(streamKey, i));
+        }
+        return queues;
+    }
+
+    private long saveBenchVoucher(int stock) {
+        long voucherId = redRedisIdWorker.nextId("bench");
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(voucherId);
+        seckillVoucher.setStock(stock);
+        seckillVoucher.setBeginTime(LocalDateTime.now());
+        seckillVoucher.setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(seckillVoucher);
+        return voucherId;
+    }
 
 }
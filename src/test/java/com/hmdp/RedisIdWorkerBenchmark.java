@@ -0,0 +1,67 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订单id生成吞吐量对比：INCR 每个id一次 Redis 往返，号段模式每 segment-step 个id一次，本地生成模式只在租用机器id时访问 Redis。
+ * 需要本地 Redis，地址通过 -Dredis.host、-Dredis.port 指定
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+
+    @Param({RedisIdWorker.MODE_INCR, RedisIdWorker.MODE_SEGMENT, RedisIdWorker.MODE_SNOWFLAKE})
+    private String mode;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdWorker idWorker;
+
+    @Setup
+    public void setup() {
+        connectionFactory = new LettuceConnectionFactory(System.getProperty("redis.host", "127.0.0.1"),
+                Integer.getInteger("redis.port", 6379));
+        connectionFactory.afterPropertiesSet();
+        idWorker = new RedisIdWorker(new StringRedisTemplate(connectionFactory), mode, 1000);
+        idWorker.init();
+    }
+
+    @TearDown
+    public void tearDown() {
+        idWorker.destroy();
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return idWorker.nextId("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RedisIdWorkerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
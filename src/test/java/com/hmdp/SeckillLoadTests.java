@@ -0,0 +1,227 @@
+package com.hmdp;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.dto.Result;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 秒杀接口压测：Tomcat 只保留少量工作线程，对比阻塞接口与非阻塞接口在高并发下的延迟、吞吐，以及占用的 Tomcat 工作线程数。
+ * 开启 Tomcat 的 MBean 注册后才有 tomcat.threads.busy 指标
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"server.tomcat.threads.max=50", "server.tomcat.mbeanregistry.enabled=true",
+                "hmdp.seckill.limit.rate=0"})
+class SeckillLoadTests {
+
+    private static final String QUEUE_NAME = "stream.orders";
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private IVoucherService voucherService;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ExecutorService clients = Executors.newFixedThreadPool(1000);
+
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+    @Test
+    void testSeckillLoad() throws InterruptedException {
+        int requests = 20000;
+        for (String path : new String[]{"/voucher-order/seckill/", "/voucher-order/seckill/async/"}) {
+            // 1.创建秒杀券，库存为请求数的一半
+            Voucher voucher = new Voucher();
+            voucher.setShopId(1L);
+            voucher.setTitle("load-test");
+            voucher.setPayValue(100L);
+            voucher.setActualValue(100L);
+            voucher.setType(1);
+            voucher.setStock(requests / 2);
+            voucher.setBeginTime(LocalDateTime.now());
+            voucher.setEndTime(LocalDateTime.now().plusDays(1));
+            voucherService.addSeckillVoucher(voucher);
+            Long voucherId = voucher.getId();
+            String url = path + voucherId;
+            String[] tokens = new String[requests];
+            // 消息队列中本次压测的消息从这个id开始
+            String firstRecordId = System.currentTimeMillis() + "-0";
+            try {
+                // 2.每个请求一个登录用户
+                for (int i = 0; i < requests; i++) {
+                    tokens[i] = login(100000L + i);
+                }
+                run(path, url, tokens);
+            } finally {
+                cleanup(voucherId, tokens, firstRecordId, requests / 2);
+            }
+        }
+    }
+
+    private void run(String path, String url, String[] tokens) throws InterruptedException {
+        int requests = tokens.length;
+        // 3.1000个客户端线程并发请求，同时每 10ms 采样一次忙碌的 Tomcat 工作线程数
+        Gauge busyThreads = meterRegistry.get("tomcat.threads.busy").gauge();
+        AtomicInteger maxBusyThreads = new AtomicInteger();
+        ScheduledFuture<?> sampling = sampler.scheduleAtFixedRate(
+                () -> maxBusyThreads.accumulateAndGet((int) busyThreads.value(), Math::max), 0, 10, TimeUnit.MILLISECONDS);
+        long[] latencies = new long[requests];
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(requests);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            int n = i;
+            clients.submit(() -> {
+                HttpHeaders headers = new HttpHeaders();
+                headers.set("authorization", tokens[n]);
+                long start = System.nanoTime();
+                try {
+                    Result result = restTemplate.exchange(url, HttpMethod.POST,
+                            new HttpEntity<>(headers), Result.class).getBody();
+                    if (result == null) {
+                        errors.incrementAndGet();
+                    } else if (result.getSuccess()) {
+                        admitted.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    latencies[n] = System.nanoTime() - start;
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        sampling.cancel(false);
+        // 4.统计
+        Arrays.sort(latencies);
+        System.out.println(path + " requests/s = " + requests * 1000L / Math.max(1, end - begin)
+                + ", p50 = " + TimeUnit.NANOSECONDS.toMillis(latencies[requests / 2]) + "ms"
+                + ", p99 = " + TimeUnit.NANOSECONDS.toMillis(latencies[requests * 99 / 100]) + "ms"
+                + ", max = " + TimeUnit.NANOSECONDS.toMillis(latencies[requests - 1]) + "ms"
+                + ", max busy tomcat threads = " + maxBusyThreads.get()
+                + ", admitted = " + admitted.get() + ", errors = " + errors.get());
+        Assertions.assertEquals(0, errors.get());
+        Assertions.assertEquals(requests / 2, admitted.get());
+    }
+
+    /**
+     * 清理压测数据：登录 token、分片 key、消费者写入的订单、消息队列中的消息、优惠券
+     */
+    private void cleanup(Long voucherId, String[] tokens, String firstRecordId, int orders) throws InterruptedException {
+        List<String> keys = new ArrayList<>();
+        for (String token : tokens) {
+            if (token != null) {
+                keys.add(LOGIN_USER_KEY + token);
+            }
+        }
+        // 压测使用默认配置创建的未分片优惠券
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_ORDER_KEY + voucherId);
+        keys.add(SECKILL_WINDOW_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+        // 等待消费者处理完消息再删除订单，否则删除之后还会有订单写入
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (voucherOrderService.query().eq("voucher_id", voucherId).count() < orders
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        deleteRecords(voucherId, firstRecordId);
+        seckillVoucherService.removeById(voucherId);
+        voucherService.removeById(voucherId);
+    }
+
+    /**
+     * 从消息队列中删除这张优惠券的消息，其他优惠券的消息保留
+     */
+    private void deleteRecords(Long voucherId, String firstRecordId) {
+        String voucher = voucherId.toString();
+        String from = firstRecordId;
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(QUEUE_NAME,
+                    Range.rightUnbounded(Range.Bound.inclusive(from)), RedisZSetCommands.Limit.limit().count(1000));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            List<String> ids = new ArrayList<>();
+            for (MapRecord<String, Object, Object> record : records) {
+                if (voucher.equals(record.getValue().get("voucherId"))) {
+                    ids.add(record.getId().getValue());
+                }
+            }
+            if (!ids.isEmpty()) {
+                stringRedisTemplate.opsForStream().delete(QUEUE_NAME, ids.toArray(new String[0]));
+            }
+            if (records.size() < 1000) {
+                return;
+            }
+            // 下一页从最后一条之后开始
+            String last = records.get(records.size() - 1).getId().getValue();
+            String[] parts = last.split("-");
+            from = parts[0] + "-" + (Long.parseLong(parts[1]) + 1);
+        }
+    }
+
+    private String login(long userId) {
+        String token = UUID.randomUUID().toString(true);
+        Map<String, String> user = new HashMap<>();
+        user.put("id", String.valueOf(userId));
+        user.put("nickName", "load-test");
+        user.put("icon", "");
+        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, user);
+        stringRedisTemplate.expire(LOGIN_USER_KEY + token, 10, TimeUnit.MINUTES);
+        return token;
+    }
+}